@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Writes a synthetic catalog in the data folder format: one
+ * {@code product<id>.txt} and one {@code reviews<id>.txt} per product, half
+ * food and half drinks, with prices, ratings and comments drawn from a
+ * seeded random so that every run sees the same data.
+ * <p>
+ * A marker file records the size of the generated catalog; a folder that
+ * already holds a catalog of the requested size is left as it is, since
+ * writing a million products takes a while.
+ *
+ * @author Marti
+ */
+public class CatalogGenerator {
+
+    private static final String MARKER = ".catalog";
+    private static final String[] NAMES = {"Tea", "Coffee", "Cake", "Cookie", "Juice", "Water", "Bread", "Soup"};
+    private static final String[] COMMENTS = {"Nice hot cup of tea", "Rather weak", "Fine", "Good value",
+        "Not for me", "Just perfect", "Too sweet", "Would buy again"};
+
+    public static void generate(Path folder, int products, int reviewsPerProduct, long seed) throws IOException {
+        Path marker = folder.resolve(MARKER);
+        String expected = products + "," + reviewsPerProduct + "," + seed;
+        if (Files.exists(marker) && Files.readString(marker).equals(expected)) {
+            return;
+        }
+        clear(folder);
+        Files.createDirectories(folder);
+
+        Random random = new Random(seed);
+        LocalDate today = LocalDate.now();
+        for (int id = 1; id <= products; id++) {
+            String name = NAMES[random.nextInt(NAMES.length)];
+            String price = (random.nextInt(2000) + 1) / 100 + "." + String.format("%02d", random.nextInt(100));
+            String line = id % 2 == 0
+                    ? "D," + id + "," + name + "," + price + ",0"
+                    : "F," + id + "," + name + "," + price + ",0," + today.plusDays(random.nextInt(30) - 5);
+            Files.writeString(folder.resolve("product" + id + ".txt"), line + "\n", StandardCharsets.UTF_8);
+
+            try ( BufferedWriter out = Files.newBufferedWriter(
+                    folder.resolve(MessageFormat.format("reviews{0}.txt", id)), StandardCharsets.UTF_8)) {
+                for (int i = 0; i < reviewsPerProduct; i++) {
+                    out.write((random.nextInt(5) + 1) + "," + COMMENTS[random.nextInt(COMMENTS.length)]);
+                    out.newLine();
+                }
+            }
+        }
+        Files.writeString(marker, expected);
+    }
+
+    private static void clear(Path folder) throws IOException {
+        if (Files.exists(folder)) {
+            try ( Stream<Path> files = Files.walk(folder)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@code CatalogGenerator <folder> <products> [reviews per product]}
+     */
+    public static void main(String[] args) throws IOException {
+        generate(Path.of(args[0]), Integer.parseInt(args[1]),
+                args.length > 2 ? Integer.parseInt(args[2]) : 5, 42);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Product manager loaded with a generated catalog of {@code scale}
+ * products. Each scale gets data and temp folders of its own next to the
+ * ones in the benchmark configuration, e.g. {@code build/bench/data-10000},
+ * so a generated catalog is reused by later runs of the same scale instead
+ * of being rewritten by the next one.
+ * <p>
+ * {@code concurrent} compares the single global lock
+ * ({@code store.concurrent=false}) with the concurrent store and striped
+ * locks ({@code store.concurrent=true}) on the same catalog.
+ * {@code metricsEnabled} measures the cost of recording operation
+ * latencies and lock waits ({@code metrics.enabled}), to be compared per
+ * benchmark between the two values.
+ *
+ * @author Marti
+ */
+@State(Scope.Benchmark)
+public class CatalogState {
+
+    @Param({"10000", "100000", "1000000"})
+    public int scale;
+
+    @Param({"true", "false"})
+    public boolean concurrent;
+
+    @Param({"false", "true"})
+    public boolean metricsEnabled;
+
+    public ProductManager pm;
+
+    private Path tempFolder;
+    private String snapshotFile;
+
+    @Setup
+    public void load() throws IOException {
+        ResourceBundle base = ResourceBundle.getBundle("labs.pm.data.config");
+        String dataFolder = base.getString("data.folder") + "-" + scale;
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("data.folder", dataFolder);
+        tempFolder = Path.of(base.getString("temp.folder") + "-" + scale);
+        snapshotFile = MessageFormat.format(base.getString("temp.file"), "DumpBeta");
+        overrides.put("temp.folder", tempFolder.toString());
+        overrides.put("store.concurrent", String.valueOf(concurrent));
+        overrides.put("metrics.enabled", String.valueOf(metricsEnabled));
+        CatalogGenerator.generate(Path.of(dataFolder), scale, 5, 42);
+        // printProducts writes to the console
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        pm = new ProductManager(new LayeredConfig(base, overrides), "", id -> true);
+    }
+
+    @TearDown
+    public void close() {
+        pm.close();
+    }
+
+    /**
+     * @return bytes of the snapshot the last {@code dumpData} wrote
+     */
+    public long snapshotSize() throws IOException {
+        return Files.size(tempFolder.resolve(snapshotFile));
+    }
+
+    public int randomId() {
+        return ThreadLocalRandom.current().nextInt(scale) + 1;
+    }
+}
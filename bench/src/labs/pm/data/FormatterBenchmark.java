@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of products and reviews for one locale.
+ *
+ * @author Marti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatterBenchmark {
+
+    @Param({"en-GB", "fr-FR", "ru-RU"})
+    public String languageTag;
+
+    private ResourceFormatter formatter;
+    private Product product;
+    private Review review;
+    private final StringWriter out = new StringWriter();
+
+    @Setup
+    public void setup() throws ParseException {
+        formatter = new ResourceFormatter(Locale.forLanguageTag(languageTag));
+        product = RecordParser.parseProduct("F,104,Chocolate,0.99,0,2020-05-19");
+        review = RecordParser.parseReview("4,Nice hot cup of tea");
+    }
+
+    @Benchmark
+    public String formatProduct() {
+        return formatter.formatProduct(product);
+    }
+
+    // the path of reports and listings, which write to a Writer
+    @Benchmark
+    public StringWriter appendProduct() throws IOException {
+        out.getBuffer().setLength(0);
+        formatter.appendProduct(out, product);
+        return out;
+    }
+
+    @Benchmark
+    public String formatReview() {
+        return formatter.formatReview(review);
+    }
+
+    @Benchmark
+    public String formatMoney() {
+        return formatter.formatMoney(product.getPrice());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of single data lines, independent of the catalog size. The
+ * {@code messageFormat} benchmarks parse the same lines the way
+ * ProductManager did before RecordParser, with the configured
+ * {@link MessageFormat} patterns, as a baseline.
+ *
+ * @author Marti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    // fields rather than constants, so the JIT cannot fold the input
+    public String food = "F,104,Chocolate,0.99,0,2020-05-19";
+    public String drink = "D,101,Tea,1.99,0";
+    public String review = "4,Nice hot cup of tea";
+    // the six column pattern needs the unused sixth column on drinks
+    public String drinkWithColumn = "D,101,Tea,1.99,0,0";
+
+    private MessageFormat productFormat;
+    private MessageFormat reviewFormat;
+
+    @Setup
+    public void setup() {
+        ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+        productFormat = new MessageFormat(config.getString("product.data.format"));
+        reviewFormat = new MessageFormat(config.getString("review.data.format"));
+    }
+
+    @Benchmark
+    public Product parseFood() throws ParseException {
+        return RecordParser.parseProduct(food);
+    }
+
+    @Benchmark
+    public Product parseDrink() throws ParseException {
+        return RecordParser.parseProduct(drink);
+    }
+
+    @Benchmark
+    public Review parseReview() throws ParseException {
+        return RecordParser.parseReview(review);
+    }
+
+    @Benchmark
+    public Product messageFormatFood() throws ParseException {
+        return messageFormatProduct(food);
+    }
+
+    @Benchmark
+    public Product messageFormatDrink() throws ParseException {
+        return messageFormatProduct(drinkWithColumn);
+    }
+
+    @Benchmark
+    public Review messageFormatReview() throws ParseException {
+        Object[] values = reviewFormat.parse(review);
+        return new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]);
+    }
+
+    private Product messageFormatProduct(String text) throws ParseException {
+        Object[] values = productFormat.parse(text);
+        int id = Integer.parseInt((String) values[1]);
+        String name = (String) values[2];
+        BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
+        Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
+        if (values[0].equals("F")) {
+            return new Food(id, name, price, rating, LocalDate.parse((String) values[5]));
+        }
+        return new Drink(id, name, price, rating);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups, reviews, listings and discounts against a loaded catalog.
+ * <p>
+ * The {@code Cheap} listings filter by price before sorting, which is
+ * where large catalogs allocate the most; run them at the largest scale
+ * with the GC profiler to see allocation per call and collection time:
+ * {@code -Dbench.args="ProductManagerBenchmark.*Cheap -p scale=1000000 -prof gc"}.
+ *
+ * @author Marti
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductManagerBenchmark {
+
+    private static final Rating[] RATINGS = Rating.values();
+
+    // not served from a sorted index, so every call sorts
+    private static final Comparator<Product> BY_NAME = Comparator.comparing(Product::getName)
+            .thenComparingInt(Product::getId);
+
+    // generated prices are spread evenly up to 20.99, about a quarter is below 5.00
+    private static final Predicate<Product> CHEAP = product -> product.getPriceUnits() < 500;
+
+    @Benchmark
+    public Product findProduct(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProduct(catalog.randomId());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Product reviewProduct1(CatalogState catalog) {
+        return review(catalog);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Product reviewProduct4(CatalogState catalog) {
+        return review(catalog);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Product reviewProduct16(CatalogState catalog) {
+        return review(catalog);
+    }
+
+    private static Product review(CatalogState catalog) {
+        Rating rating = RATINGS[ThreadLocalRandom.current().nextInt(1, RATINGS.length)];
+        return catalog.pm.reviewProduct(catalog.randomId(), rating, "Benchmark review");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void printProductsByName(CatalogState catalog) {
+        catalog.pm.printProducts(p -> true, BY_NAME, 100, "en-GB");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Product> findProductsByRating(CatalogState catalog) {
+        return catalog.pm.findProducts(p -> true, ProductManager.BY_RATING, 100);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Product> findCheapByPrice(CatalogState catalog) {
+        return catalog.pm.findProducts(CHEAP, ProductManager.BY_PRICE, 100);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Product> findCheapByName(CatalogState catalog) {
+        return catalog.pm.findProducts(CHEAP, BY_NAME, 100);
+    }
+
+    // every match sorted, no top-K bound
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Product> sortAllCheapByName(CatalogState catalog) {
+        return catalog.pm.findProducts(CHEAP, BY_NAME, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void printCheapByName(CatalogState catalog) {
+        catalog.pm.printProducts(CHEAP, BY_NAME, 100, "en-GB");
+    }
+
+    @Benchmark
+    public Map<String, String> getDiscounts(CatalogState catalog) {
+        return catalog.pm.getDiscounts("en-GB");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public void dumpAndRestore(CatalogState catalog) {
+        catalog.pm.dumpData();
+        catalog.pm.restoreData();
+    }
+
+    /**
+     * Size of the snapshot a dump leaves, reported next to the dump time
+     * as the {@code snapshotBytes} secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class SnapshotSize {
+
+        public long snapshotBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            snapshotBytes = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public void dumpData(CatalogState catalog, SnapshotSize size) throws IOException {
+        catalog.pm.dumpData();
+        size.snapshotBytes = catalog.snapshotSize();
+    }
+}
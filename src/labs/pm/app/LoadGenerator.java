@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.app;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import labs.pm.data.LatencyHistogram;
+
+/**
+ * Closed loop load generator for {@link ShopServer}: each client thread
+ * sends one request, waits for the whole response and sends the next, so
+ * the offered load follows the server's latency. The run steps through the
+ * given concurrency levels and prints throughput and latency percentiles
+ * per level and per operation.
+ * <p>
+ * Arguments are {@code key=value} pairs:
+ * <ul>
+ * <li>{@code url} server address, {@code http://localhost:8080}</li>
+ * <li>{@code levels} client threads per step, {@code 1,4,16,64}</li>
+ * <li>{@code duration} measured seconds per step, {@code 10}</li>
+ * <li>{@code warmup} unmeasured seconds before each step, {@code 2}</li>
+ * <li>{@code ids} product ids to use, as a range, {@code 101-164}</li>
+ * <li>{@code mix} percentage of each operation,
+ * {@code find:60,list:20,review:15,discounts:5}</li>
+ * </ul>
+ *
+ * @author Marti
+ */
+public class LoadGenerator {
+
+    enum Operation {
+        FIND, LIST, REVIEW, DISCOUNTS
+    }
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String url;
+    private final int firstId;
+    private final int lastId;
+    // cumulative percentages, in Operation order
+    private final int[] mix = new int[Operation.values().length];
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LatencyHistogram all = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean measuring;
+
+    LoadGenerator(String url, int firstId, int lastId, Map<Operation, Integer> percentages) {
+        this.url = url;
+        this.firstId = firstId;
+        this.lastId = lastId;
+        int total = 0;
+        for (Operation operation : Operation.values()) {
+            total += percentages.getOrDefault(operation, 0);
+            mix[operation.ordinal()] = total;
+            latencies.put(operation, new LatencyHistogram());
+        }
+        if (total != 100) {
+            throw new IllegalArgumentException("Operation mix adds up to " + total + "%, not 100%");
+        }
+    }
+
+    /*
+     * Clients run until the step ends; only responses received while
+     * measuring are counted.
+     */
+    void step(int clients, long warmupMillis, long durationMillis) throws InterruptedException {
+        latencies.values().forEach(LatencyHistogram::reset);
+        all.reset();
+        errors.reset();
+        measuring = false;
+        long end = System.currentTimeMillis() + warmupMillis + durationMillis;
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                while (System.currentTimeMillis() < end) {
+                    request();
+                }
+            }, "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        Thread.sleep(warmupMillis);
+        measuring = true;
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        measuring = false;
+        report(clients, seconds);
+    }
+
+    private void request() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Operation operation = pick(random.nextInt(100));
+        int id = random.nextInt(firstId, lastId + 1);
+        HttpRequest request;
+        switch (operation) {
+            case FIND:
+                request = get("/products/" + id);
+                break;
+            case LIST:
+                request = get("/products?sort=" + (random.nextBoolean() ? "rating" : "price") + "&limit=20");
+                break;
+            case REVIEW:
+                request = HttpRequest.newBuilder(URI.create(url + "/products/" + id + "/reviews"))
+                        .POST(HttpRequest.BodyPublishers.ofString(random.nextInt(6) + ",load test"))
+                        .build();
+                break;
+            default:
+                request = get("/discounts");
+        }
+        long start = System.nanoTime();
+        boolean failed;
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            failed = response.statusCode() != 200;
+        } catch (IOException ex) {
+            failed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (measuring) {
+            if (failed) {
+                errors.increment();
+            }
+            latencies.get(operation).record(elapsed);
+            all.record(elapsed);
+        }
+    }
+
+    private Operation pick(int percent) {
+        for (Operation operation : Operation.values()) {
+            if (percent < mix[operation.ordinal()]) {
+                return operation;
+            }
+        }
+        return Operation.DISCOUNTS;
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(url + path)).GET().build();
+    }
+
+    private void report(int clients, double seconds) {
+        LatencyHistogram.Snapshot total = all.snapshot();
+        System.out.printf("%n%d clients: %.0f requests/s, %d errors%n", clients, total.getCount() / seconds,
+                errors.sum());
+        System.out.printf("  %-10s %10s %10s %10s %10s %10s%n", "operation", "count", "p50 us", "p99 us",
+                "p999 us", "max us");
+        latencies.forEach((operation, histogram) -> print(operation.name().toLowerCase(), histogram.snapshot()));
+        print("all", total);
+    }
+
+    private static void print(String name, LatencyHistogram.Snapshot snapshot) {
+        System.out.printf("  %-10s %10d %10d %10d %10d %10d%n", name, snapshot.getCount(),
+                snapshot.getP50() / 1000, snapshot.getP99() / 1000, snapshot.getP999() / 1000,
+                snapshot.getMax() / 1000);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>(Map.of("url", "http://localhost:8080",
+                "levels", "1,4,16,64", "duration", "10", "warmup", "2", "ids", "101-164",
+                "mix", "find:60,list:20,review:15,discounts:5"));
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String[] ids = options.get("ids").split("-");
+        Map<Operation, Integer> percentages = new EnumMap<>(Operation.class);
+        for (String share : options.get("mix").split(",")) {
+            String[] parts = share.split(":");
+            percentages.put(Operation.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+        }
+        LoadGenerator generator = new LoadGenerator(options.get("url"), Integer.parseInt(ids[0]),
+                Integer.parseInt(ids[ids.length - 1]), percentages);
+        long warmup = Long.parseLong(options.get("warmup")) * 1000;
+        long duration = Long.parseLong(options.get("duration")) * 1000;
+        System.out.println("Load on " + options.get("url") + ", mix " + options.get("mix"));
+        for (int clients : Arrays.stream(options.get("levels").split(",")).mapToInt(Integer::parseInt).toArray()) {
+            generator.step(clients, warmup, duration);
+        }
+    }
+}
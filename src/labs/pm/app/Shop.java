@@ -84,19 +84,19 @@ public class Shop {
         pm.printProductReport(104);
       
         pm.printProducts(
-          p-> p.getPrice().floatValue() < 2,      
+          p-> p.getPriceUnits() < 200,      
           (p1,p2) -> {
             return p2.getRating().ordinal() - p1.getRating().ordinal();
         } ) ;
         
         pm.printProducts((p1,p2) -> {
-            return p2.getPrice().compareTo(p1.getPrice());
+            return p2.comparePrice(p1);
         }) ;
          
         Comparator<Product> ratingSorter = (p1, p2) -> p2.getRating().ordinal()-p1.getRating().ordinal();
-        Comparator<Product> priceSorter = (p1, p2) -> p2.getPrice().compareTo(p1.getPrice());
+        Comparator<Product> priceSorter = (p1, p2) -> p2.comparePrice(p1);
 
-        pm.printProducts(p-> p.getPrice().floatValue() < 2,  ratingSorter.thenComparing(priceSorter));
+        pm.printProducts(p-> p.getPriceUnits() < 200,  ratingSorter.thenComparing(priceSorter));
         pm.printProducts(ratingSorter.thenComparing(priceSorter).reversed());
 
         pm.getDiscounts().forEach((rating,discount) -> System.out.println(rating+"\t"+discount));
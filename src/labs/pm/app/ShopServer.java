@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.ProductManager;
+import labs.pm.data.ProductManagerException;
+
+/**
+ * Local HTTP front end of {@link ProductManager}, for driving it with
+ * concurrent requests. Requests are served on a fixed pool of worker
+ * threads:
+ * <ul>
+ * <li>{@code GET /products/{id}?lang=en-GB} the product report</li>
+ * <li>{@code POST /products/{id}/reviews} a review as {@code rating,comments}</li>
+ * <li>{@code GET /products?sort=rating|price&limit=20&lang=en-GB} the listing</li>
+ * <li>{@code GET /discounts?lang=en-GB} discounts per rating</li>
+ * </ul>
+ * Responses are UTF-8 text, written as they are produced. The server only
+ * listens on the loopback address.
+ * <p>
+ * Without {@code -Dsun.net.httpserver.nodelay=true} small responses wait
+ * for the client's delayed ACK, adding about 40 ms to every request. The
+ * JDK server reads the property once, before the first server is created;
+ * {@link #main(String[])} sets it unless given, embedders set it
+ * themselves.
+ *
+ * @author Marti
+ */
+public class ShopServer implements AutoCloseable {
+
+    private final ProductManager pm;
+    private final HttpServer server;
+    private final ExecutorService workers;
+
+    private static final Logger logger = Logger.getLogger(ShopServer.class.getName());
+
+    public ShopServer(ProductManager pm, int port, int threads) throws IOException {
+        this.pm = pm;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread worker = new Thread(task, "shop-worker-" + count.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(workers);
+        server.createContext("/products", this::products);
+        server.createContext("/discounts", this::discounts);
+        server.start();
+        logger.log(Level.INFO, "Serving on port {0} with {1} threads",
+                new Object[]{String.valueOf(getPort()), threads});
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    private void products(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = query(exchange.getRequestURI());
+            String lenguageTag = query.getOrDefault("lang", "en-GB");
+            String method = exchange.getRequestMethod();
+            if (path.length == 2 && method.equals("GET")) {
+                list(exchange, query, lenguageTag);
+            } else if (path.length == 3 && method.equals("GET")) {
+                find(exchange, Integer.parseInt(path[2]), lenguageTag);
+            } else if (path.length == 4 && path[3].equals("reviews") && method.equals("POST")) {
+                review(exchange, Integer.parseInt(path[2]));
+            } else {
+                send(exchange, 404, "Not found");
+            }
+        } catch (NumberFormatException ex) {
+            send(exchange, 400, "Bad request " + ex.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void find(HttpExchange exchange, int id, String lenguageTag) throws IOException {
+        try {
+            pm.findProduct(id);
+        } catch (ProductManagerException ex) {
+            send(exchange, 404, ex.getMessage());
+            return;
+        }
+        Writer out = open(exchange, 200);
+        try {
+            pm.printProductReport(id, lenguageTag, out);
+        } catch (ProductManagerException ex) {
+            // removed by a restore after the headers went out
+            out.write(ex.getMessage());
+        }
+        out.flush();
+    }
+
+    private void review(HttpExchange exchange, int id) throws IOException {
+        String review;
+        try (InputStream in = exchange.getRequestBody()) {
+            review = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+        }
+        try {
+            pm.findProduct(id);
+        } catch (ProductManagerException ex) {
+            send(exchange, 404, ex.getMessage());
+            return;
+        }
+        int added = pm.reviewProducts(Stream.of(id + "," + review));
+        if (added == 0) {
+            send(exchange, 400, "Bad review " + review);
+        } else {
+            send(exchange, 200, String.valueOf(added));
+        }
+    }
+
+    private void list(HttpExchange exchange, Map<String, String> query, String lenguageTag) throws IOException {
+        Comparator<Product> sorter = "price".equals(query.get("sort")) ? ProductManager.BY_PRICE
+                : ProductManager.BY_RATING;
+        int limit = Integer.parseInt(query.getOrDefault("limit", "20"));
+        if (limit < 0) {
+            send(exchange, 400, "Bad limit " + limit);
+            return;
+        }
+        Writer out = open(exchange, 200);
+        pm.printProducts(ProductManager.ALL, sorter, limit, lenguageTag, out);
+    }
+
+    private void discounts(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 404, "Not found");
+                return;
+            }
+            Writer out = open(exchange, 200);
+            for (Map.Entry<String, String> discount
+                    : pm.getDiscounts(query(exchange.getRequestURI()).getOrDefault("lang", "en-GB")).entrySet()) {
+                out.write(discount.getKey() + "\t" + discount.getValue() + "\n");
+            }
+            out.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // chunked, so the body can be written before its length is known
+    private static Writer open(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String pair : uri.getRawQuery().split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @param args port, 8080 by default, and number of worker threads, four
+     * per processor by default
+     */
+    public static void main(String[] args) throws IOException {
+        // see the class comment, a -D on the command line wins
+        System.getProperties().putIfAbsent("sun.net.httpserver.nodelay", "true");
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : 4 * Runtime.getRuntime().availableProcessors();
+        ShopServer server = new ShopServer(ProductManager.getInstance(), port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    }
+}
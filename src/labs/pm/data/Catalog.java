@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable, versioned view of the products: the products by id, both
+ * sorted listings and the per rating discount totals, all taken at the
+ * same instant.
+ * <p>
+ * Writers derive a new catalog with {@link #with(Product)} and publish it
+ * atomically; readers take the current catalog and use it without locking,
+ * seeing every product, listing and total of one version.
+ *
+ * @author Marti
+ */
+final class Catalog {
+
+    private static final int RATINGS = Rating.values().length;
+
+    static final Catalog EMPTY = new Catalog(0, PersistentIntMap.empty(),
+            PersistentSortedSet.empty(ProductManager.BY_RATING), PersistentSortedSet.empty(ProductManager.BY_PRICE),
+            new long[RATINGS], new long[RATINGS]);
+
+    private final long version;
+    private final PersistentIntMap<Product> products;
+    private final PersistentSortedSet<Product> byRating;
+    private final PersistentSortedSet<Product> byPrice;
+    // per Rating ordinal: number of products and sum of their discounts in cents
+    private final long[] ratedProducts;
+    private final long[] ratedDiscounts;
+
+    private Catalog(long version, PersistentIntMap<Product> products, PersistentSortedSet<Product> byRating,
+            PersistentSortedSet<Product> byPrice, long[] ratedProducts, long[] ratedDiscounts) {
+        this.version = version;
+        this.products = products;
+        this.byRating = byRating;
+        this.byPrice = byPrice;
+        this.ratedProducts = ratedProducts;
+        this.ratedDiscounts = ratedDiscounts;
+    }
+
+    /**
+     * Builds a catalog of distinct products in one pass, for loading and
+     * restoring.
+     */
+    static Catalog of(long version, Collection<Product> all) {
+        PersistentIntMap<Product> products = PersistentIntMap.empty();
+        long[] ratedProducts = new long[RATINGS];
+        long[] ratedDiscounts = new long[RATINGS];
+        for (Product product : all) {
+            products = products.plus(product.getId(), product);
+            count(ratedProducts, ratedDiscounts, product, 1);
+        }
+        return new Catalog(version, products,
+                PersistentSortedSet.ofSorted(ProductManager.BY_RATING, sorted(all, ProductManager.BY_RATING)),
+                PersistentSortedSet.ofSorted(ProductManager.BY_PRICE, sorted(all, ProductManager.BY_PRICE)),
+                ratedProducts, ratedDiscounts);
+    }
+
+    private static List<Product> sorted(Collection<Product> all, Comparator<Product> order) {
+        return all.parallelStream().sorted(order).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the next version, with the product added or replacing the
+     * product of the same id
+     */
+    Catalog with(Product product) {
+        Product old = products.get(product.getId());
+        PersistentSortedSet<Product> newByRating = byRating;
+        PersistentSortedSet<Product> newByPrice = byPrice;
+        long[] newRatedProducts = ratedProducts.clone();
+        long[] newRatedDiscounts = ratedDiscounts.clone();
+        if (old != null) {
+            newByRating = newByRating.minus(old);
+            newByPrice = newByPrice.minus(old);
+            count(newRatedProducts, newRatedDiscounts, old, -1);
+        }
+        count(newRatedProducts, newRatedDiscounts, product, 1);
+        return new Catalog(version + 1, products.plus(product.getId(), product),
+                newByRating.plus(product), newByPrice.plus(product), newRatedProducts, newRatedDiscounts);
+    }
+
+    private static void count(long[] counts, long[] discounts, Product product, int sign) {
+        int rating = product.getRating().ordinal();
+        counts[rating] += sign;
+        discounts[rating] += sign * product.getDiscountUnits();
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    Product get(int id) {
+        return products.get(id);
+    }
+
+    boolean contains(int id) {
+        return products.containsKey(id);
+    }
+
+    int size() {
+        return products.size();
+    }
+
+    List<Product> products() {
+        return products.values();
+    }
+
+    PersistentSortedSet<Product> byRating() {
+        return byRating;
+    }
+
+    PersistentSortedSet<Product> byPrice() {
+        return byPrice;
+    }
+
+    long getRatedProducts(Rating rating) {
+        return ratedProducts[rating.ordinal()];
+    }
+
+    long getRatedDiscounts(Rating rating) {
+        return ratedDiscounts[rating.ordinal()];
+    }
+}
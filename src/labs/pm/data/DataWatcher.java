@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Applies files dropped into the data folder to a running
+ * {@link ProductManager}.
+ * <p>
+ * File events are collected for a short batch window, then new product files
+ * are added, changed product files replace their product and only the
+ * lines appended to review files since they were last read are parsed and
+ * applied. Changes go through the regular per product write paths, so a
+ * batch never pauses the whole store. Review files are expected to grow by
+ * appending; a review file that shrinks is read again from the start.
+ * Batch apply time and ingest lag are recorded in {@link Metrics}.
+ *
+ * @author Marti
+ */
+class DataWatcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(DataWatcher.class.getName());
+
+    private final ProductManager pm;
+    private final Path folder;
+    private final String reviewFilePattern;
+    private final String reviewPrefix;
+    private final String reviewSuffix;
+    private final long batchMillis;
+
+    // bytes of each review file already applied, only used by the watcher thread
+    private final Map<Path, Long> offsets = new HashMap<>();
+
+    private final Metrics metrics;
+
+    private WatchService watcher;
+    private Thread thread;
+
+    DataWatcher(ProductManager pm, Path folder, String reviewFilePattern, long batchMillis) {
+        this.pm = pm;
+        this.folder = folder;
+        this.reviewFilePattern = reviewFilePattern;
+        int arg = reviewFilePattern.indexOf("{0}");
+        this.reviewPrefix = reviewFilePattern.substring(0, arg);
+        this.reviewSuffix = reviewFilePattern.substring(arg + 3);
+        this.batchMillis = batchMillis;
+        this.metrics = pm.getMetrics();
+    }
+
+    /*
+     * Review files of known products start where the initial load stopped
+     * reading, given per product id in loaded; without it, as after
+     * restoring a snapshot, their current size is taken as applied. Other
+     * review files start from the beginning once their product arrives. The
+     * folder is registered first and the first batch compares every review
+     * file with its offset, so lines written since the initial load are
+     * applied without waiting for an event.
+     */
+    synchronized void start(Map<Integer, Long> loaded) throws IOException {
+        watcher = folder.getFileSystem().newWatchService();
+        folder.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        try ( Stream<Path> files = Files.list(folder)) {
+            files.forEach(file -> {
+                int id = reviewId(file);
+                if (id >= 0 && pm.hasProduct(id)) {
+                    offsets.put(file.getFileName(), loaded == null ? size(file) : loaded.getOrDefault(id, 0L));
+                }
+            });
+        }
+        thread = new Thread(this, "data-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.log(Level.INFO, "Watching {0} for new data", folder);
+    }
+
+    synchronized void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error closing data watcher " + ex.getMessage(), ex);
+            }
+            watcher = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        WatchService watcher = this.watcher;
+        try {
+            try ( Stream<Path> files = Files.list(folder)) {
+                Set<Path> reviewFiles = new LinkedHashSet<>();
+                files.filter(file -> reviewId(file) >= 0).forEach(file -> reviewFiles.add(file.getFileName()));
+                apply(reviewFiles, System.nanoTime());
+            }
+            while (true) {
+                WatchKey key = watcher.take();
+                long first = System.nanoTime();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = drain(key, changed);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0
+                        && (key = watcher.poll(remaining, TimeUnit.NANOSECONDS)) != null) {
+                    overflow |= drain(key, changed);
+                }
+                if (overflow) {
+                    // events were lost, compare every file with what was read so far
+                    try ( Stream<Path> files = Files.list(folder)) {
+                        files.forEach(file -> changed.add(file.getFileName()));
+                    }
+                }
+                apply(changed, first);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            logger.log(Level.INFO, "Stopped watching {0}", folder);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error watching data " + ex.getMessage(), ex);
+        }
+    }
+
+    private static boolean drain(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else {
+                changed.add((Path) event.context());
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /*
+     * Products first, so that reviews in the same batch find them. Review
+     * files of products that are not known yet are left unread and picked
+     * up again once their product file arrives.
+     */
+    private void apply(Set<Path> changed, long first) {
+        long start = System.nanoTime();
+        long metered = metrics.start();
+        int products = 0;
+        int reviews = 0;
+        Set<Path> reviewFiles = new LinkedHashSet<>();
+        for (Path file : changed) {
+            if (file.toString().startsWith("product")) {
+                Product product = readProduct(folder.resolve(file));
+                if (product == null) {
+                    continue;
+                }
+                if (pm.ingestProduct(product)) {
+                    products++;
+                    reviewFiles.add(Path.of(MessageFormat.format(reviewFilePattern, product.getId())));
+                } else if (pm.replaceProduct(product)) {
+                    products++;
+                }
+            } else if (reviewId(file) >= 0) {
+                reviewFiles.add(file);
+            }
+        }
+        for (Path file : reviewFiles) {
+            reviews += applyReviews(file, reviewId(file));
+        }
+        if (products == 0 && reviews == 0) {
+            return;
+        }
+
+        long end = System.nanoTime();
+        metrics.record(Metrics.Operation.INGEST_BATCH, metered);
+        metrics.recordIngestLag(end - first);
+        logger.log(Level.INFO, "Applied {0} products and {1} reviews in {2} ms, ingest lag {3} ms",
+                new Object[]{products, reviews, (end - start) / 1_000_000, (end - first) / 1_000_000});
+    }
+
+    private Product readProduct(Path file) {
+        try {
+            String text = firstLine(file);
+            return text == null ? null : pm.parseProduct(text);
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error loading product " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    private static String firstLine(Path file) throws IOException {
+        try ( Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.findFirst().orElse(null);
+        }
+    }
+
+    /*
+     * Reads from the last applied offset up to the last complete line; a
+     * line still being written is left for the next event on the file.
+     */
+    private int applyReviews(Path file, int id) {
+        if (!pm.hasProduct(id)) {
+            return 0;
+        }
+        long offset = offsets.getOrDefault(file, 0L);
+        byte[] delta;
+        try ( FileChannel channel = FileChannel.open(folder.resolve(file), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < offset) {
+                offset = 0;
+            }
+            if (size == offset) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size - offset));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            delta = Arrays.copyOf(buffer.array(), buffer.position());
+        } catch (NoSuchFileException ex) {
+            return 0;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error loading review " + ex.getMessage(), ex);
+            return 0;
+        }
+
+        int end = delta.length;
+        while (end > 0 && delta[end - 1] != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            return 0;
+        }
+        offsets.put(file, offset + end);
+
+        List<Review> reviews = new ArrayList<>();
+        for (String text : new String(delta, 0, end, StandardCharsets.UTF_8).split("\r?\n")) {
+            if (!text.isEmpty()) {
+                Review review = pm.parseReview(text);
+                if (review != null) {
+                    reviews.add(review);
+                }
+            }
+        }
+        return pm.ingestReviews(id, reviews);
+    }
+
+    private int reviewId(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(reviewPrefix) || !name.endsWith(reviewSuffix)
+                || name.length() <= reviewPrefix.length() + reviewSuffix.length()) {
+            return -1;
+        }
+        // review file names are written with MessageFormat, which groups digits
+        String id = name.substring(reviewPrefix.length(), name.length() - reviewSuffix.length())
+                .replaceAll("[^0-9]", "");
+        try {
+            return id.isEmpty() ? -1 : Integer.parseInt(id);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Open addressing hash map keyed by a primitive {@code int}, used for the
+ * rating stats of each product id so lookups do not box the id into an
+ * {@code Integer}. Null values are not allowed, an empty slot is a slot
+ * with a null value. Keys are never removed, which keeps every probe chain
+ * intact for readers that do not lock.
+ * <p>
+ * Reads never lock: the table is published through a volatile field and
+ * values are written with release semantics, so a reader always sees a
+ * fully built value. Inserting a new key must be serialized by the caller,
+ * while replacing the value of an existing key may run concurrently with
+ * reads and with replacements of other keys.
+ *
+ * @author Marti
+ */
+class IntHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private static final class Table {
+
+        private final int[] keys;
+        private final Object[] values;
+
+        private Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+
+    IntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    IntHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        table = new Table(capacity);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static Object value(Table t, int i) {
+        return SLOT.getAcquire(t.values, i);
+    }
+
+    private static int slot(Table t, int key) {
+        int mask = t.keys.length - 1;
+        int i = hash(key) & mask;
+        while (value(t, i) != null && t.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table t = table;
+        return (V) value(t, slot(t, key));
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        Table t = table;
+        int i = slot(t, key);
+        V old = (V) value(t, i);
+        t.keys[i] = key;
+        SLOT.setRelease(t.values, i, value);
+        if (old == null && ++size > t.keys.length * 3 / 4) {
+            resize(t);
+        }
+        return old;
+    }
+
+    private void resize(Table old) {
+        Table t = new Table(old.keys.length << 1);
+        for (int i = 0; i < old.keys.length; i++) {
+            Object value = value(old, i);
+            if (value != null) {
+                int j = slot(t, old.keys[i]);
+                t.keys[j] = old.keys[i];
+                t.values[j] = value;
+            }
+        }
+        table = t;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
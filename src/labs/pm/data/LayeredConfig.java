@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+/**
+ * Configuration with a few keys replaced and the rest read from another
+ * bundle, usually the application configuration. Used for the shards of
+ * {@link ShardedProductManager}, which need temp folders of their own.
+ *
+ * @author Marti
+ */
+class LayeredConfig extends ResourceBundle {
+
+    private final Map<String, Object> overrides;
+
+    LayeredConfig(ResourceBundle base, Map<String, Object> overrides) {
+        this.overrides = overrides;
+        setParent(base);
+    }
+
+    @Override
+    protected Object handleGetObject(String key) {
+        return overrides.get(key);
+    }
+
+    @Override
+    protected Set<String> handleKeySet() {
+        return overrides.keySet();
+    }
+
+    @Override
+    public Enumeration<String> getKeys() {
+        Set<String> keys = new HashSet<>(overrides.keySet());
+        keys.addAll(parent.keySet());
+        return Collections.enumeration(keys);
+    }
+}
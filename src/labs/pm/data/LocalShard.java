@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Shard backed by a product manager in this process.
+ *
+ * @author Marti
+ */
+class LocalShard implements Shard {
+
+    private final ProductManager pm;
+
+    LocalShard(ProductManager pm) {
+        this.pm = pm;
+    }
+
+    ProductManager getProductManager() {
+        return pm;
+    }
+
+    @Override
+    public boolean addProduct(Product product) {
+        return pm.ingestProduct(product);
+    }
+
+    @Override
+    public Product findProduct(int id) {
+        try {
+            return pm.findProduct(id);
+        } catch (ProductManagerException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public Product reviewProduct(int id, Rating rating, String comments) {
+        return pm.reviewProduct(id, rating, comments);
+    }
+
+    @Override
+    public int reviewProducts(Map<Integer, ? extends Collection<Review>> batch) {
+        return pm.reviewProducts(batch);
+    }
+
+    @Override
+    public List<Review> getReviews(int id, int offset, int limit) {
+        try {
+            return pm.getReviews(id, offset, limit);
+        } catch (ProductManagerException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit) {
+        return pm.findProducts(filter, sorter, limit);
+    }
+
+    @Override
+    public long[] getDiscountTotals() {
+        return pm.getDiscountTotals();
+    }
+
+    @Override
+    public void printProductReport(int id, String lenguageTag, String client) {
+        pm.printProductReport(id, lenguageTag, client);
+    }
+
+    @Override
+    public void dumpData() {
+        pm.dumpData();
+    }
+
+    @Override
+    public void restoreData() {
+        pm.restoreData();
+    }
+
+    @Override
+    public void close() {
+        pm.close();
+    }
+}
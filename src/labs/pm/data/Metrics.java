@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Call counts and latencies of {@link ProductManager} operations, and wait
+ * and hold times of its locks.
+ * <p>
+ * Operations are timed with {@link #start()} and
+ * {@link #record(Operation, long)}; when metrics are disabled both return
+ * at once without reading the clock, and {@link #instrument(Lock, String)}
+ * hands back the lock unchanged, so disabled metrics cost one field read
+ * per call. Startup times are recorded either way.
+ *
+ * @author Marti
+ */
+public class Metrics implements MetricsMXBean {
+
+    public enum Operation {
+        CREATE_PRODUCT, REVIEW_PRODUCT, REVIEW_PRODUCTS, FIND_PRODUCT, PRINT_PRODUCT_REPORT, PRINT_PRODUCT_REPORTS,
+        PRINT_PRODUCTS, GET_DISCOUNTS, DUMP_DATA, RESTORE_DATA, LOAD_ALL_DATA, INGEST_BATCH
+    }
+
+    private final boolean enabled;
+    private final Map<Operation, LatencyHistogram> operations = new EnumMap<>(Operation.class);
+    private final Map<String, LatencyHistogram> lockWaits = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> lockHolds = new ConcurrentHashMap<>();
+    // data.watch: from the first file event of a batch until the batch is applied
+    private final LatencyHistogram ingestLag = new LatencyHistogram();
+
+    // startup, from construction: until the data is loaded and until the first operation
+    private final long created = System.nanoTime();
+    private volatile long timeToReady = -1;
+    private final AtomicLong timeToFirstRequest = new AtomicLong(-1);
+
+    Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new LatencyHistogram());
+        }
+    }
+
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void record(Operation operation, long start) {
+        if (enabled) {
+            operations.get(operation).record(System.nanoTime() - start);
+        }
+    }
+
+    void recordIngestLag(long nanos) {
+        if (enabled) {
+            ingestLag.record(nanos);
+        }
+    }
+
+    void ready() {
+        timeToReady = System.nanoTime() - created;
+    }
+
+    /*
+     * One read once the first request is recorded; returns true for the
+     * call that recorded it.
+     */
+    boolean firstRequest() {
+        return timeToFirstRequest.get() < 0
+                && timeToFirstRequest.compareAndSet(-1, System.nanoTime() - created);
+    }
+
+    /*
+     * Locks sharing a name, such as the stripes of the concurrent store,
+     * report into the same histograms.
+     */
+    Lock instrument(Lock lock, String name) {
+        if (!enabled) {
+            return lock;
+        }
+        return new InstrumentedLock(lock,
+                lockWaits.computeIfAbsent(name, key -> new LatencyHistogram()),
+                lockHolds.computeIfAbsent(name, key -> new LatencyHistogram()));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public long getTimeToReady() {
+        return timeToReady;
+    }
+
+    @Override
+    public long getTimeToFirstRequest() {
+        return timeToFirstRequest.get();
+    }
+
+    public LatencyHistogram.Snapshot getOperation(Operation operation) {
+        return operations.get(operation).snapshot();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getOperations() {
+        Map<String, LatencyHistogram.Snapshot> snapshot = new LinkedHashMap<>();
+        operations.forEach((operation, histogram) -> snapshot.put(operation.name(), histogram.snapshot()));
+        return snapshot;
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIngestLag() {
+        return ingestLag.snapshot();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLockWaits() {
+        return snapshot(lockWaits);
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLockHolds() {
+        return snapshot(lockHolds);
+    }
+
+    private static Map<String, LatencyHistogram.Snapshot> snapshot(Map<String, LatencyHistogram> histograms) {
+        Map<String, LatencyHistogram.Snapshot> snapshot = new LinkedHashMap<>();
+        histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        operations.values().forEach(LatencyHistogram::reset);
+        lockWaits.values().forEach(LatencyHistogram::reset);
+        lockHolds.values().forEach(LatencyHistogram::reset);
+        ingestLag.reset();
+    }
+
+    /*
+     * Hold time runs from the outermost acquisition to the matching
+     * release by the same thread, so reentrant use counts once.
+     */
+    private static class InstrumentedLock implements Lock {
+
+        private final Lock lock;
+        private final LatencyHistogram waits;
+        private final LatencyHistogram holds;
+        // per thread: hold count and time of the outermost acquisition
+        private final ThreadLocal<long[]> held = ThreadLocal.withInitial(() -> new long[2]);
+
+        InstrumentedLock(Lock lock, LatencyHistogram waits, LatencyHistogram holds) {
+            this.lock = lock;
+            this.waits = waits;
+            this.holds = holds;
+        }
+
+        private void acquired(long start) {
+            long now = System.nanoTime();
+            waits.record(now - start);
+            long[] state = held.get();
+            if (state[0]++ == 0) {
+                state[1] = now;
+            }
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            lock.lock();
+            acquired(start);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            long start = System.nanoTime();
+            lock.lockInterruptibly();
+            acquired(start);
+        }
+
+        @Override
+        public boolean tryLock() {
+            long start = System.nanoTime();
+            if (lock.tryLock()) {
+                acquired(start);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long start = System.nanoTime();
+            if (lock.tryLock(time, unit)) {
+                acquired(start);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void unlock() {
+            long[] state = held.get();
+            if (state[0] > 0 && --state[0] == 0) {
+                holds.record(System.nanoTime() - state[1]);
+            }
+            lock.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return lock.newCondition();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link Metrics}, registered as
+ * {@code labs.pm.data:type=ProductManager,name=Metrics} when
+ * {@code metrics.enabled=true}. Durations are in nanoseconds.
+ *
+ * @author Marti
+ */
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+
+    /**
+     * @return time from startup until the data was loaded, -1 while loading
+     */
+    long getTimeToReady();
+
+    /**
+     * @return time from startup until the first operation went ahead, -1
+     * before that
+     */
+    long getTimeToFirstRequest();
+
+    Map<String, LatencyHistogram.Snapshot> getOperations();
+
+    LatencyHistogram.Snapshot getIngestLag();
+
+    Map<String, LatencyHistogram.Snapshot> getLockWaits();
+
+    Map<String, LatencyHistogram.Snapshot> getLockHolds();
+
+    void reset();
+}
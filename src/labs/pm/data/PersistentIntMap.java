@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Immutable map from int keys to values, as a hash array mapped trie.
+ * <p>
+ * {@link #plus(int, Object)} returns a new map that shares everything but
+ * the path to the changed key with this one, which is a handful of nodes
+ * of at most 32 slots. Keys are spread with a
+ * multiplicative hash that is a bijection on int, so two keys never share
+ * a full hash and the trie needs no collision nodes. Products are never
+ * removed from the catalog, so neither are keys.
+ *
+ * @author Marti
+ */
+final class PersistentIntMap<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(new Node(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentIntMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int hash = hash(key);
+        Node node = root;
+        for (int shift = 0;; shift += BITS) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Node) {
+                node = (Node) slot;
+            } else {
+                Leaf leaf = (Leaf) slot;
+                return leaf.key == key ? (V) leaf.value : null;
+            }
+        }
+    }
+
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    PersistentIntMap<V> plus(int key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = put(root, 0, hash(key), new Leaf(key, value), added);
+        return newRoot == root ? this : new PersistentIntMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super V> action) {
+        forEach(root, (Consumer<Object>) action);
+    }
+
+    List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach(values::add);
+        return values;
+    }
+
+    private static void forEach(Node node, Consumer<Object> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Node) {
+                forEach((Node) slot, action);
+            } else {
+                action.accept(((Leaf) slot).value);
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        return key * 0x9E3779B9;
+    }
+
+    private static Node put(Node node, int shift, int hash, Leaf leaf, boolean[] added) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return node.insert(bit, index, leaf);
+        }
+        Object slot = node.slots[index];
+        if (slot instanceof Node) {
+            Node child = put((Node) slot, shift + BITS, hash, leaf, added);
+            return child == slot ? node : node.replace(index, child);
+        }
+        Leaf existing = (Leaf) slot;
+        if (existing.key == leaf.key) {
+            return existing.value == leaf.value ? node : node.replace(index, leaf);
+        }
+        added[0] = true;
+        return node.replace(index, pair(shift + BITS, existing, hash(existing.key), leaf, hash));
+    }
+
+    /*
+     * Distinct keys have distinct hashes, so the two leaves part within the
+     * 32 hash bits.
+     */
+    private static Node pair(int shift, Leaf first, int firstHash, Leaf second, int secondHash) {
+        int firstIndex = (firstHash >>> shift) & MASK;
+        int secondIndex = (secondHash >>> shift) & MASK;
+        if (firstIndex == secondIndex) {
+            return new Node(1 << firstIndex,
+                    new Object[]{pair(shift + BITS, first, firstHash, second, secondHash)});
+        }
+        return new Node((1 << firstIndex) | (1 << secondIndex), firstIndex < secondIndex
+                ? new Object[]{first, second} : new Object[]{second, first});
+    }
+
+    private static final class Node {
+
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        Node insert(int bit, int index, Object slot) {
+            Object[] copy = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, copy, 0, index);
+            copy[index] = slot;
+            System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+            return new Node(bitmap | bit, copy);
+        }
+
+        Node replace(int index, Object slot) {
+            Object[] copy = slots.clone();
+            copy[index] = slot;
+            return new Node(bitmap, copy);
+        }
+    }
+
+    private static final class Leaf {
+
+        final int key;
+        final Object value;
+
+        Leaf(int key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
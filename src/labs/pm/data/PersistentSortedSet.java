@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Immutable sorted set, as a treap with random priorities.
+ * <p>
+ * {@link #plus(Object)} and {@link #minus(Object)} copy only the nodes on
+ * the path to the element, about {@code 2 log n} of them, and share the
+ * rest with this set. Iteration is in comparator order, so a listing that
+ * needs the first few elements stops early.
+ *
+ * @author Marti
+ */
+final class PersistentSortedSet<T> implements Iterable<T> {
+
+    private final Comparator<? super T> comparator;
+    private final Node<T> root;
+    private final int size;
+
+    private PersistentSortedSet(Comparator<? super T> comparator, Node<T> root, int size) {
+        this.comparator = comparator;
+        this.root = root;
+        this.size = size;
+    }
+
+    static <T> PersistentSortedSet<T> empty(Comparator<? super T> comparator) {
+        return new PersistentSortedSet<>(comparator, null, 0);
+    }
+
+    /*
+     * Builds the treap over already sorted, distinct elements in linear
+     * time, keeping the right spine of the tree on a stack.
+     */
+    static <T> PersistentSortedSet<T> ofSorted(Comparator<? super T> comparator, List<T> sorted) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ArrayDeque<Builder<T>> spine = new ArrayDeque<>();
+        for (T element : sorted) {
+            Builder<T> node = new Builder<>(element, random.nextInt());
+            Builder<T> last = null;
+            while (!spine.isEmpty() && spine.peek().priority < node.priority) {
+                last = spine.pop();
+            }
+            node.left = last;
+            if (!spine.isEmpty()) {
+                spine.peek().right = node;
+            }
+            spine.push(node);
+        }
+        return new PersistentSortedSet<>(comparator, spine.isEmpty() ? null : spine.peekLast().build(), sorted.size());
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    PersistentSortedSet<T> plus(T element) {
+        Node<T> newRoot = insert(root, element, ThreadLocalRandom.current().nextInt());
+        return newRoot == root ? this : new PersistentSortedSet<>(comparator, newRoot, size + 1);
+    }
+
+    PersistentSortedSet<T> minus(T element) {
+        Node<T> newRoot = remove(root, element);
+        return newRoot == root ? this : new PersistentSortedSet<>(comparator, newRoot, size - 1);
+    }
+
+    private Node<T> insert(Node<T> node, T element, int priority) {
+        if (node == null) {
+            return new Node<>(element, priority, null, null);
+        }
+        int order = comparator.compare(element, node.value);
+        if (order < 0) {
+            Node<T> left = insert(node.left, element, priority);
+            if (left == node.left) {
+                return node;
+            }
+            return left.priority > node.priority
+                    ? new Node<>(left.value, left.priority, left.left,
+                            new Node<>(node.value, node.priority, left.right, node.right))
+                    : new Node<>(node.value, node.priority, left, node.right);
+        }
+        if (order > 0) {
+            Node<T> right = insert(node.right, element, priority);
+            if (right == node.right) {
+                return node;
+            }
+            return right.priority > node.priority
+                    ? new Node<>(right.value, right.priority,
+                            new Node<>(node.value, node.priority, node.left, right.left), right.right)
+                    : new Node<>(node.value, node.priority, node.left, right);
+        }
+        return node;
+    }
+
+    private Node<T> remove(Node<T> node, T element) {
+        if (node == null) {
+            return null;
+        }
+        int order = comparator.compare(element, node.value);
+        if (order < 0) {
+            Node<T> left = remove(node.left, element);
+            return left == node.left ? node : new Node<>(node.value, node.priority, left, node.right);
+        }
+        if (order > 0) {
+            Node<T> right = remove(node.right, element);
+            return right == node.right ? node : new Node<>(node.value, node.priority, node.left, right);
+        }
+        return merge(node.left, node.right);
+    }
+
+    private static <T> Node<T> merge(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return left.priority > right.priority
+                ? new Node<>(left.value, left.priority, left.left, merge(left.right, right))
+                : new Node<>(right.value, right.priority, merge(left, right.left), right.right);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private final ArrayDeque<Node<T>> path = new ArrayDeque<>();
+
+            {
+                descend(root);
+            }
+
+            private void descend(Node<T> node) {
+                for (; node != null; node = node.left) {
+                    path.push(node);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node<T> node = path.pop();
+                descend(node.right);
+                return node.value;
+            }
+        };
+    }
+
+    Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), size,
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    private static final class Node<T> {
+
+        final T value;
+        final int priority;
+        final Node<T> left;
+        final Node<T> right;
+
+        Node(T value, int priority, Node<T> left, Node<T> right) {
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private static final class Builder<T> {
+
+        final T value;
+        final int priority;
+        Builder<T> left;
+        Builder<T> right;
+
+        Builder(T value, int priority) {
+            this.value = value;
+            this.priority = priority;
+        }
+
+        // iterative post-order, the spine of a skewed build can be long
+        Node<T> build() {
+            ArrayDeque<Object> stack = new ArrayDeque<>();
+            ArrayDeque<Node<T>> built = new ArrayDeque<>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                Object top = stack.pop();
+                if (top instanceof Builder) {
+                    @SuppressWarnings("unchecked")
+                    Builder<T> builder = (Builder<T>) top;
+                    stack.push(new Object[]{builder});
+                    if (builder.right != null) {
+                        stack.push(builder.right);
+                    }
+                    if (builder.left != null) {
+                        stack.push(builder.left);
+                    }
+                } else {
+                    @SuppressWarnings("unchecked")
+                    Builder<T> builder = (Builder<T>) ((Object[]) top)[0];
+                    Node<T> right = builder.right != null ? built.pop() : null;
+                    Node<T> left = builder.left != null ? built.pop() : null;
+                    built.push(new Node<>(builder.value, builder.priority, left, right));
+                }
+            }
+            return built.pop();
+        }
+    }
+}
@@ -18,52 +18,106 @@
 package labs.pm.data;
 
 import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import static java.math.RoundingMode.HALF_UP;
 
 /**
+ * Immutable product value. A change such as a new rating produces a new
+ * instance, so a product read from the catalog never changes under the
+ * reader.
  *
  * @author Marti
  */
 public class Product {
     
-    private int id;
-    private String name;
-    private BigDecimal price;
+    private final int id;
+    private final String name;
+    private final BigDecimal price;
+    // price and discount in minor currency units (cents for a scale of 2), derived from price
+    private final long priceUnits;
+    private final long discountUnits;
+    private final BigDecimal discount;
     
     public static final BigDecimal DISCOUNT_RATE;
+
+    /**
+     * Number of decimal places of {@link #getPriceUnits()} and
+     * {@link #getDiscountUnits()}: the default fraction digits of the
+     * currency named by {@code price.currency} in the config bundle, or 2
+     * when it is not set or the currency has no minor unit scale.
+     */
+    public static final int PRICE_SCALE;
     
     static {
         DISCOUNT_RATE = BigDecimal.valueOf(0.1);
+        PRICE_SCALE = priceScale();
+    }
+
+    private static int priceScale() {
+        try {
+            ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+            if (config.containsKey("price.currency")) {
+                int digits = Currency.getInstance(config.getString("price.currency").trim())
+                        .getDefaultFractionDigits();
+                if (digits >= 0) {
+                    return digits;
+                }
+            }
+        } catch (MissingResourceException | IllegalArgumentException ex) {
+            Logger.getLogger(Product.class.getName()).log(Level.WARNING,
+                    "Using a price scale of 2: " + ex.getMessage(), ex);
+        }
+        return 2;
     }
     
-            
+    /**
+     * The only constructor: subclasses pass the id, name and price here,
+     * there are no setters to fill them in later.
+     */
+    protected Product(int id, String name, BigDecimal price) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.priceUnits = price.setScale(PRICE_SCALE, HALF_UP).unscaledValue().longValueExact();
+        this.discount = price.multiply(DISCOUNT_RATE).setScale(PRICE_SCALE, HALF_UP);
+        this.discountUnits = discount.unscaledValue().longValueExact();
+    }
 
     public int getId() {
         return id;
     }
 
-    public void setId(int id) {
-        this.id = id;
-    }
-
     public String getName() {
         return name;
     }
-    
-    
-    public void setName(String name) {
-        this.name = name;
-    }
 
     public BigDecimal getPrice() {
         return price;
     }
 
-    public void setPrice(final BigDecimal price) {
-        this.price = price;
+    /**
+     * @return the price in minor currency units, e.g. 199 for 1.99
+     */
+    public long getPriceUnits() {
+        return priceUnits;
+    }
+
+    public int comparePrice(Product other) {
+        return Long.compare(priceUnits, other.priceUnits);
     }
     
     public BigDecimal getDiscount(){
-        return price.multiply(DISCOUNT_RATE).setScale(2,HALF_UP);
+        return discount;
+    }
+
+    /**
+     * @return the discount in minor currency units, e.g. 20 for 0.20
+     */
+    public long getDiscountUnits() {
+        return discountUnits;
     }
 }
@@ -17,40 +17,69 @@
  */
 package labs.pm.data;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.text.MessageFormat;
-import java.text.NumberFormat;
 import java.text.ParseException;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.time.format.FormatStyle;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
@@ -58,32 +87,140 @@ import java.util.stream.Stream;
  */
 public class ProductManager {
 
-    private Map<Product, List<Review>> products = new HashMap();
+    /**
+     * Every product. Listings of all products in {@link #BY_RATING} or
+     * {@link #BY_PRICE} order are the ones kept in the render cache.
+     */
+    public static final Predicate<Product> ALL = product -> true;
+
+    /**
+     * Best rated first, then most expensive first. Listings in this order
+     * are read straight from a maintained index.
+     */
+    public static final Comparator<Product> BY_RATING = (p1, p2) -> {
+        int order = p2.getRating().ordinal() - p1.getRating().ordinal();
+        if (order == 0) {
+            order = p2.comparePrice(p1);
+        }
+        return order != 0 ? order : Integer.compare(p1.getId(), p2.getId());
+    };
+
+    /**
+     * Cheapest first. Listings in this order are read straight from a
+     * maintained index.
+     */
+    public static final Comparator<Product> BY_PRICE = (p1, p2) -> {
+        int order = p1.comparePrice(p2);
+        return order != 0 ? order : Integer.compare(p1.getId(), p2.getId());
+    };
 
     //private ResourceFormatter formatter;
-    private final ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+    private final ResourceBundle config;
+    // shard name, empty for the single instance, and the ids the instance keeps
+    private final String name;
+    private final IntPredicate owns;
+
+    private final boolean concurrent;
+    private final boolean columnar;
+    private final Metrics metrics;
+
+    // with store.columnar=true the review lists are views over off-heap columns
+    private ReviewColumns reviewColumns;
+    // and product names are shared through a dictionary
+    private final UnaryOperator<String> names;
+    private Map<Product, List<Review>> products;
+    private IntHashMap<RatingStats> ratingStats = new IntHashMap<>();
+    // products, listings and discount totals, replaced as a whole on every change
+    private final AtomicReference<Catalog> catalog = new AtomicReference<>(Catalog.EMPTY);
+    // point-in-time views still being read, see captureView
+    private final List<View> openViews = new CopyOnWriteArrayList<>();
+
+    private final Path reportsFolder;
+    private final Path dataFolder;
+    private final Path tempFolder;
+
+    // with reviews.lazy=true review files are only read when a product's reviews are used
+    private final ReviewCache reviewCache;
+
+    // with render.cache.size > 0 reports and listings are rendered once per version
+    private final RenderCache renderCache;
+    // per report file: locale and version last written there, and the file time after writing
+    private final Map<Path, String> writtenReports = new ConcurrentHashMap<>();
+
+    private final ReviewLog reviewLog;
+    // folds sealed log segments into snapshots, started by recover
+    private volatile ScheduledExecutorService compactor;
+    // set by the loader thread, closed by whichever thread shuts down
+    private volatile DataWatcher dataWatcher;
+    // done once the data is loaded; with startup.async=true loading goes on after construction
+    private final CompletableFuture<Void> ready;
+    // with data.watch=true: bytes of each product's review file read by the initial load
+    private final Map<Integer, Long> loadedReviewBytes;
+    // false when the data came from a snapshot instead
+    private boolean loadedDataFolder;
+    private final ReviewLog.Handler replayer = new ReviewLog.Handler() {
+        @Override
+        public void product(Product product) {
+            if (!addProduct(product)) {
+                changeProduct(product);
+            }
+        }
+
+        @Override
+        public void review(int id, Rating rating, String comments) {
+            Product product = catalog.get().get(id);
+            if (product != null) {
+                applyReview(product, rating, comments);
+            }
+        }
+    };
+    // on top of the data folder, whose review files still hold what the watcher read from them
+    private final ReviewLog.Handler folderReplayer = new ReviewLog.Handler() {
+        @Override
+        public void product(Product product) {
+            replayer.product(product);
+        }
 
-    private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
-    private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
+        @Override
+        public void review(int id, Rating rating, String comments) {
+            replayer.review(id, rating, comments);
+        }
 
-    private final Path reportsFolder = Path.of(config.getString("reports.folder"));
-    private final Path dataFolder = Path.of(config.getString("data.folder"));
-    private final Path tempFolder = Path.of(config.getString("temp.folder"));
+        @Override
+        public void fileReview(int id, Rating rating, String comments) {
+        }
+    };
 
-    private static final Map<String, ResourceFormatter> formatters
-            = Map.of("en-GB", new ResourceFormatter(Locale.UK),
-                    "en-US", new ResourceFormatter(Locale.US),
-                    "fr-FR", new ResourceFormatter(Locale.FRANCE),
-                    "ru-RU", new ResourceFormatter(new Locale("ru", "RU")),
-                    "zh-CH", new ResourceFormatter(Locale.CHINA));
+    private static final Map<String, Locale> locales
+            = Map.of("en-GB", Locale.UK,
+                    "en-US", Locale.US,
+                    "fr-FR", Locale.FRANCE,
+                    "ru-RU", new Locale("ru", "RU"),
+                    "zh-CH", Locale.CHINA);
+    // each one loads its resource bundle and formats, so only built when a locale is first used
+    private static final Map<String, ResourceFormatter> formatters = new ConcurrentHashMap<>();
 
     private static final Logger logger = Logger.getLogger(ProductManager.class.getName());
 
-    private static final ProductManager pm = new ProductManager();
+    /*
+     * Built on first use rather than in ProductManager's own static
+     * initializer: the loader threads touch static members and would wait
+     * forever for a class initialization that is waiting on them.
+     */
+    private static class InstanceHolder {
+
+        private static final ProductManager pm = new ProductManager();
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(pm::close, "product-manager-shutdown"));
+        }
+    }
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock writeLock = lock.writeLock();
-    private final Lock readLock = lock.readLock();
+    private final Lock writeLock;
+    private final Lock readLock;
+    private final Lock snapshotLock;
+    private final Lock[] stripes;
 
     /*
     public ProductManager(/*Locale locale* /) {
@@ -91,12 +228,312 @@ public class ProductManager {
     }*/
 
     private ProductManager(/*String lenguageTag*/) {
+        this(ResourceBundle.getBundle("labs.pm.data.config"), "", id -> true);
+    }
+
+    /*
+     * Shards are built with their own configuration, see
+     * ShardedProductManager, and only load and accept the ids they own.
+     */
+    ProductManager(ResourceBundle config, String name, IntPredicate owns) {
+        this.config = config;
+        this.name = name;
+        this.owns = owns;
+        this.concurrent = Boolean.parseBoolean(setting("store.concurrent", "false"));
+        this.columnar = Boolean.parseBoolean(setting("store.columnar", "false"));
+        this.metrics = new Metrics(Boolean.parseBoolean(setting("metrics.enabled", "false")));
+        this.names = columnar ? new StringDictionary(dictionarySize()) : UnaryOperator.identity();
+        this.products = newStore(new HashMap<>());
+
+        this.reportsFolder = Path.of(config.getString("reports.folder"));
+        this.dataFolder = Path.of(config.getString("data.folder"));
+        this.tempFolder = Path.of(config.getString("temp.folder"));
+        this.reviewCache = Boolean.parseBoolean(setting("reviews.lazy", "false"))
+                ? new ReviewCache(this::loadReviews, Long.parseLong(setting("reviews.cache.size", "1000000")))
+                : null;
+        this.loadedReviewBytes = Boolean.parseBoolean(setting("data.watch", "false")) ? new ConcurrentHashMap<>() : null;
+        this.renderCache = new RenderCache(Long.parseLong(setting("render.cache.size", "0")));
+        this.reviewLog = openReviewLog();
+
+        this.writeLock = metrics.instrument(lock.writeLock(), "write");
+        this.readLock = metrics.instrument(lock.readLock(), "read");
+        this.snapshotLock = metrics.instrument(new ReentrantLock(), "snapshot");
+        this.stripes = newStripes(Integer.parseInt(setting("store.lock.stripes", "64")));
+
+        this.ready = new CompletableFuture<>();
+        if (metrics.isEnabled()) {
+            registerMetrics();
+        }
+
         //  this.changeLocale(lenguageTag);
-        this.loadAllData();
+        // last, the loader thread must not see a partly constructed manager
+        if (Boolean.parseBoolean(setting("startup.async", "false"))) {
+            Thread loader = new Thread(this::load, "data-loader" + (name.isEmpty() ? "" : "-" + name));
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            this.start();
+            ready.complete(null);
+        }
+    }
+
+    private void load() {
+        try {
+            this.start();
+            ready.complete(null);
+        } catch (Throwable ex) {
+            ready.completeExceptionally(ex);
+        }
+    }
+
+    private void start() {
+        if (reviewLog != null) {
+            this.recover();
+        } else {
+            this.loadAllData();
+        }
+        this.dataWatcher = startDataWatcher();
+        metrics.ready();
+        logger.log(Level.INFO, "Ready {0} ms after start", metrics.getTimeToReady() / 1_000_000);
+    }
+
+    /**
+     * Completes once the data is loaded. With {@code startup.async=true}
+     * {@link #getInstance()} returns before that and every operation waits
+     * for it; otherwise it is already complete.
+     */
+    public CompletableFuture<ProductManager> whenReady() {
+        return ready.thenApply(done -> this);
+    }
+
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /*
+     * Called first by every operation that reads or changes the data.
+     */
+    private void awaitReady() {
+        try {
+            ready.join();
+        } catch (CompletionException ex) {
+            throw new IllegalStateException("Data failed to load", ex.getCause());
+        }
+        if (metrics.firstRequest()) {
+            logger.log(Level.INFO, "First request {0} ms after start", metrics.getTimeToFirstRequest() / 1_000_000);
+        }
     }
 
     public static ProductManager getInstance() {
-        return pm;
+        return InstanceHolder.pm;
+    }
+
+    /**
+     * Stops watching the data folder and compacting the review log, waits
+     * for queued review log records to be written and stops taking new
+     * ones. Called on shutdown for the shared instance.
+     */
+    public void close() {
+        if (dataWatcher != null) {
+            dataWatcher.close();
+        }
+        // a compaction under way writes its snapshot from the log, stop it first
+        if (compactor != null) {
+            compactor.shutdownNow();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (reviewLog != null) {
+            reviewLog.close();
+        }
+    }
+
+    private String setting(String key, String defaultValue) {
+        return config.containsKey(key) ? config.getString(key) : defaultValue;
+    }
+
+    /*
+     * With data.watch=true files dropped into the data folder are applied
+     * while running. Lazily loaded review lists read the whole review file
+     * on first use, so they would count appended lines twice.
+     */
+    private DataWatcher startDataWatcher() {
+        if (!Boolean.parseBoolean(setting("data.watch", "false"))) {
+            return null;
+        }
+        if (reviewCache != null) {
+            logger.log(Level.WARNING, "data.watch is not supported with reviews.lazy, not watching {0}", dataFolder);
+            return null;
+        }
+        DataWatcher watcher = new DataWatcher(this, dataFolder, config.getString("review.data.file"),
+                Long.parseLong(setting("data.watch.batch.millis", "200")));
+        try {
+            watcher.start(loadedDataFolder ? loadedReviewBytes : null);
+            loadedReviewBytes.clear();
+            return watcher;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error watching data folder " + ex.getMessage(), ex);
+            watcher.close();
+            return null;
+        }
+    }
+
+    private void registerMetrics() {
+        String shard = name.isEmpty() ? "" : ",shard=" + name;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("labs.pm.data:type=ProductManager,name=Metrics" + shard));
+            if (renderCache.isEnabled()) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(renderCache,
+                        new ObjectName("labs.pm.data:type=ProductManager,name=RenderCache" + shard));
+            }
+            if (reviewCache != null) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(reviewCache,
+                        new ObjectName("labs.pm.data:type=ProductManager,name=ReviewCache" + shard));
+            }
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Error registering metrics " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Operation latencies and lock times, empty unless
+     * {@code metrics.enabled=true}.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Hits, misses, evictions and invalidations of rendered reports and
+     * listings; the cache is only used with {@code render.cache.size} set
+     * to its capacity in characters.
+     */
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    /**
+     * Loads, evictions and sizes of the review lists read on demand, null
+     * unless {@code reviews.lazy=true}.
+     */
+    public ReviewCache getReviewCache() {
+        return reviewCache;
+    }
+
+    private ReviewLog openReviewLog() {
+        if (!Boolean.parseBoolean(setting("log.enabled", "false"))) {
+            return null;
+        }
+        try {
+            return new ReviewLog(Path.of(setting("log.folder", tempFolder.resolve("log").toString())),
+                    Long.parseLong(setting("log.segment.size", String.valueOf(64 * 1024 * 1024))));
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error opening review log " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    private Map<Product, List<Review>> newStore(Map<Product, List<Review>> data) {
+        return newStore(data, columnar ? newColumns() : null);
+    }
+
+    /*
+     * Lists already stored in the given columns, e.g. converted by the
+     * loader threads, are kept as they are.
+     */
+    private Map<Product, List<Review>> newStore(Map<Product, List<Review>> data, ReviewColumns columns) {
+        if (columns != null) {
+            data.replaceAll((product, reviews) -> reviews instanceof ReviewCache.LazyReviews
+                    || columns.holds(reviews) ? reviews : columns.newList(reviews));
+            reviewColumns = columns;
+            if (!data.isEmpty()) {
+                logger.log(Level.INFO, "Stored {0} reviews in {1} KB off-heap, {2} KB of comments shared "
+                        + "through {3} dictionary entries",
+                        new Object[]{columns.rowCount(), columns.offHeapBytes() / 1024,
+                            columns.sharedBytes() / 1024, columns.dictionaryEntries()});
+            }
+        }
+        return concurrent ? new ConcurrentHashMap<>(data) : data;
+    }
+
+    private ReviewColumns newColumns() {
+        return new ReviewColumns(dictionarySize());
+    }
+
+    private int dictionarySize() {
+        return Integer.parseInt(setting("store.columnar.dictionary", "65536"));
+    }
+
+    /*
+     * Heap still in use after a full collection. Only called with
+     * heap.measure=true, to compare the columnar and the object layout.
+     */
+    private static long retainedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private List<Review> newReviewList() {
+        return columnar ? reviewColumns.newList() : new ArrayList<>();
+    }
+
+    private Lock[] newStripes(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        Lock[] locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = metrics.instrument(new ReentrantLock(), "stripe");
+        }
+        return locks;
+    }
+
+    private Lock stripe(int id) {
+        return stripes[(id ^ (id >>> 16)) & (stripes.length - 1)];
+    }
+
+    /*
+     * In the default mode every write takes the global write lock and every
+     * read the global read lock. In concurrent mode (store.concurrent=true)
+     * a review only holds the read lock, which keeps out snapshots and
+     * restores, plus the lock stripe of its product, so reviews of
+     * different products run in parallel and lookups take no lock at all.
+     * Reading a product's reviews or stats takes the same two locks: a
+     * restore replaces the products map and the stats together under the
+     * write lock, so neither field is ever read without the read lock.
+     */
+    private void lockProduct(int id) {
+        if (concurrent) {
+            readLock.lock();
+            stripe(id).lock();
+        } else {
+            writeLock.lock();
+        }
+    }
+
+    private void unlockProduct(int id) {
+        if (concurrent) {
+            stripe(id).unlock();
+            readLock.unlock();
+        } else {
+            writeLock.unlock();
+        }
+    }
+
+    private void lockReviews(int id) {
+        readLock.lock();
+        if (concurrent) {
+            stripe(id).lock();
+        }
+    }
+
+    private void unlockReviews(int id) {
+        if (concurrent) {
+            stripe(id).unlock();
+        }
+        readLock.unlock();
     }
 
     public void changeLocale(/*String lenguageTag*/) {
@@ -105,143 +542,592 @@ public class ProductManager {
     
     public static Set<String> getSupportLocales(){
         
-        return formatters.keySet(); 
+        return locales.keySet(); 
     
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        long start = metrics.start();
         Product product = null;
         try {
-            writeLock.lock();
             product = new Food(id, name, price, rating, bestBefore);
-            this.products.putIfAbsent(product, new ArrayList<>());
+            ingestProduct(product);
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error adding product " + ex.toString());
         } finally {
-            writeLock.unlock();
+            metrics.record(Metrics.Operation.CREATE_PRODUCT, start);
         }
 
         return product;
     }
 
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
+        long start = metrics.start();
         Product product = null;
         try {
             product = new Drink(id, name, price, rating);
-            this.products.putIfAbsent(product, new ArrayList<>());
+            ingestProduct(product);
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error adding product " + ex.toString());
         } finally {
-            writeLock.unlock();
+            metrics.record(Metrics.Operation.CREATE_PRODUCT, start);
         }
         return product;
     }
 
-    public Product reviewProduct(int id, Rating rating, String comments) {
+    /*
+     * Adds a product built elsewhere, logging it when the review log is
+     * enabled. Returns false when a product with the same id exists.
+     */
+    boolean ingestProduct(Product product) {
+        awaitReady();
+        if (!owns.test(product.getId())) {
+            return false;
+        }
+        boolean added = false;
+        CompletableFuture<Void> durable = null;
         try {
             writeLock.lock();
-            return this.reviewProduct(this.findProduct(id), rating, comments);
+            added = addProduct(product);
+            if (added && reviewLog != null) {
+                durable = reviewLog.appendProduct(product);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        awaitDurable(durable);
+        return added;
+    }
+
+    /*
+     * Takes a changed definition of an existing product, such as an edited
+     * product file. Its reviews are kept and still decide its rating.
+     * Returns false when the product is unknown or nothing changed.
+     */
+    boolean replaceProduct(Product product) {
+        awaitReady();
+        int id = product.getId();
+        boolean changed;
+        CompletableFuture<Void> durable = null;
+        try {
+            lockProduct(id);
+            changed = changeProduct(product);
+            if (changed && reviewLog != null) {
+                durable = reviewLog.appendProduct(product);
+            }
+        } finally {
+            unlockProduct(id);
+        }
+        awaitDurable(durable);
+        return changed;
+    }
+
+    private boolean changeProduct(Product product) {
+        Product current = catalog.get().get(product.getId());
+        if (current == null || current.getClass() == product.getClass()
+                && current.getName().equals(product.getName())
+                && current.getPrice().equals(product.getPrice())
+                && Objects.equals(current.getBestBefore(), product.getBestBefore())) {
+            return false;
+        }
+        RatingStats stats = ratingStats.get(product.getId());
+        if (stats.getCount() > 0) {
+            product = product.applyRating(stats.getAverageRating());
+        }
+        List<Review> reviews = products.remove(current);
+        products.put(product, reviews);
+        stats.setVersion(publish(product));
+        return true;
+    }
+
+    boolean hasProduct(int id) {
+        return catalog.get().contains(id);
+    }
+
+    /**
+     * Version of the catalog that readers currently see; it changes with
+     * every product added or re-rated.
+     */
+    public long getCatalogVersion() {
+        awaitReady();
+        return catalog.get().getVersion();
+    }
+
+    private boolean addProduct(Product product) {
+        if (this.products.putIfAbsent(product, newReviewList()) != null) {
+            return false;
+        }
+        RatingStats stats = new RatingStats();
+        ratingStats.put(product.getId(), stats);
+        stats.setVersion(publish(product));
+        return true;
+    }
+
+    /*
+     * Writers of different products can publish at the same time; a writer
+     * that loses the race derives its change again from the newer catalog.
+     */
+    // every change gets a version of its own, even when products change concurrently
+    private long publish(Product product) {
+        return catalog.updateAndGet(current -> current.with(product)).getVersion();
+    }
+
+    public Product reviewProduct(int id, Rating rating, String comments) {
+        awaitReady();
+        long start = metrics.start();
+        Product product = null;
+        CompletableFuture<Void> durable = null;
+        try {
+            lockProduct(id);
+            product = this.applyReview(this.product(id), rating, comments);
+            if (reviewLog != null) {
+                durable = reviewLog.appendReview(id, rating, comments);
+            }
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.toString());
         }finally{
-            writeLock.unlock();
+            unlockProduct(id);
         }
-        return null;
+        awaitDurable(durable);
+        metrics.record(Metrics.Operation.REVIEW_PRODUCT, start);
+        return product;
     }
 
     public Product reviewProduct(Product product, Rating rating, String comments) {
+        return reviewProduct(product.getId(), rating, comments);
+    }
+
+    /**
+     * Adds a batch of reviews, grouped by product id. Each product is
+     * locked once for its whole group and its rating is recomputed once.
+     *
+     * @return the number of reviews added; reviews of unknown products are
+     * skipped
+     */
+    public int reviewProducts(Map<Integer, ? extends Collection<Review>> batch) {
+        return reviewProducts(batch, false);
+    }
+
+    /*
+     * Reviews read from a product's review file in the data folder. They
+     * are logged as such, a restart from the data folder reads them again
+     * from the file instead of replaying them.
+     */
+    int ingestReviews(int id, List<Review> reviews) {
+        return reviewProducts(Map.of(id, reviews), true);
+    }
+
+    private int reviewProducts(Map<Integer, ? extends Collection<Review>> batch, boolean fromFile) {
+        awaitReady();
+        long start = metrics.start();
+        int added = 0;
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (Map.Entry<Integer, ? extends Collection<Review>> group : batch.entrySet()) {
+            if (!group.getValue().isEmpty()) {
+                added += reviewProduct(group.getKey(), group.getValue(), durable, fromFile);
+            }
+        }
+        awaitDurable(CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[0])));
+        metrics.record(Metrics.Operation.REVIEW_PRODUCTS, start);
+        return added;
+    }
+
+    /**
+     * Adds reviews given as lines of a product id followed by a review in
+     * the review data format, for example {@code 101,4,Nice hot cup of tea}.
+     * Lines that cannot be parsed are logged and skipped.
+     *
+     * @see #reviewProducts(Map)
+     */
+    public int reviewProducts(Stream<String> lines) {
+        Map<Integer, List<Review>> batch = new LinkedHashMap<>();
+        lines.forEach(text -> {
+            int comma = text.indexOf(',');
+            try {
+                int id = Integer.parseInt(text.substring(0, Math.max(comma, 0)).trim());
+                Review review = parseReview(text.substring(comma + 1));
+                if (review != null) {
+                    batch.computeIfAbsent(id, key -> new ArrayList<>()).add(review);
+                }
+            } catch (NumberFormatException ex) {
+                logger.log(Level.WARNING, "Error parsing review " + text + ": no product id");
+            }
+        });
+        return reviewProducts(batch);
+    }
+
+    private int reviewProduct(int id, Collection<Review> reviews, List<CompletableFuture<Void>> durable,
+            boolean fromFile) {
+        try {
+            lockProduct(id);
+            Product product = catalog.get().get(id);
+            if (product == null) {
+                logger.log(Level.INFO, "Product with id {0} not found, skipped {1} reviews",
+                        new Object[]{id, reviews.size()});
+                return 0;
+            }
+            applyReviews(product, reviews);
+            if (reviewLog != null) {
+                for (Review review : reviews) {
+                    durable.add(reviewLog.appendReview(id, review.getRating(), review.getComments(), fromFile));
+                }
+            }
+            return reviews.size();
+        } finally {
+            unlockProduct(id);
+        }
+    }
+
+    private void awaitDurable(CompletableFuture<Void> durable) {
+        if (durable != null) {
+            try {
+                durable.join();
+            } catch (CompletionException ex) {
+                logger.log(Level.SEVERE, "Change applied but not logged " + ex.getCause(), ex.getCause());
+            }
+        }
+    }
+
+    private Product applyReview(Product product, Rating rating, String comments) {
+        return applyReviews(product, List.of(new Review(rating, comments)));
+    }
+
+    /*
+     * The product is re-rated and re-indexed once for all the reviews.
+     */
+    private Product applyReviews(Product product, Collection<Review> added) {
 
         List<Review> reviews = products.get(product);
-        products.remove(products, reviews);
+        RatingStats stats = ratingStats.get(product.getId());
+        // stats built from a list count it on first use, so before it grows
+        stats.getCount();
 
-        reviews.add(new Review(rating, comments));
+        for (View view : openViews) {
+            view.mark(reviews);
+        }
+        // the only step that can fail, e.g. a full columnar store, and it
+        // adds all the reviews or none: nothing has changed yet if it throws
+        reviews.addAll(added);
 
-        product = product.applyRating(
-                Rateable.convert((int) Math.round(
-                        reviews.stream()
-                                .mapToInt(r -> r.getRating().ordinal())
-                                .average().
-                                orElse(0))));
+        for (Review review : added) {
+            stats.add(review.getRating());
+        }
+        product = product.applyRating(stats.getAverageRating());
 
+        // the re-rated product replaces the equal key
+        products.remove(product);
         products.put(product, reviews);
+        stats.setVersion(publish(product));
         return product;
     }
 
     public Product findProduct(int id) throws ProductManagerException {
-        
-        try{
-            readLock.lock();
-             return products.keySet()
-                .stream()
-                .filter(p -> p.getId() == id)
-                .findFirst()
-                .orElseThrow(() -> new ProductManagerException("Product with id "+ id +" not found"));
- 
-        }finally{
-            readLock.unlock();
+
+        awaitReady();
+        long start = metrics.start();
+        try {
+            return product(id);
+        } finally {
+            metrics.record(Metrics.Operation.FIND_PRODUCT, start);
+        }
+
+    }
+
+    /*
+     * Lookup for operations given an id, which are recorded under their
+     * own operation rather than as a FIND_PRODUCT each.
+     */
+    private Product product(int id) throws ProductManagerException {
+        Product product = catalog.get().get(id);
+        if (product == null) {
+            throw new ProductManagerException("Product with id "+ id +" not found");
         }
-              //.get();
-        //orElseGet(()-> null);
+        return product;
+    }
 
+    public RatingStats getRatingStats(int id) throws ProductManagerException {
+        awaitReady();
+        try {
+            lockReviews(id);
+            RatingStats stats = ratingStats.get(id);
+            if (stats == null) {
+                throw new ProductManagerException("Product with id " + id + " not found");
+            }
+            return stats.copy();
+        } finally {
+            unlockReviews(id);
+        }
     }
 
     public void printProductReport(int id, String lenguageTag, String client) {
+        awaitReady();
+        long start = metrics.start();
         try {
-            readLock.lock();
-            this.printProductReport(this.findProduct(id), lenguageTag,client);
+            Product product = this.product(id);
+            if (renderCache.isEnabled()) {
+                this.printProductReport(product, lenguageTag, client);
+            } else {
+                this.printProductReport(product, reviewsOf(product), lenguageTag, client);
+            }
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.toString());
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error printing product report " + ex.toString(), ex);
-        }finally{
-            readLock.unlock();
+        } finally {
+            metrics.record(Metrics.Operation.PRINT_PRODUCT_REPORT, start);
         }
     }
 
-    private void printProductReport(Product product, String lenguageTag, String client) throws IOException {
+    /**
+     * Writes the report of every product in every supported locale, to
+     * one file per product and locale. The reports are rendered in parallel
+     * from a point-in-time copy of the data, so reviews keep coming in
+     * while the files are written. Metered as a whole, apart from the
+     * single reports.
+     */
+    public void printProductReports(String client) {
+        awaitReady();
+        long metered = metrics.start();
+        long start = System.nanoTime();
+        Map<Product, List<Review>> view;
+        try ( View captured = captureView()) {
+            view = captured.contents().getData();
+        }
 
-        ResourceFormatter formatter = formatters.getOrDefault(lenguageTag, formatters.get("en-GB"));
+        int threads = Math.max(1, Integer.parseInt(setting("report.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> reports = new ArrayList<>(view.size());
+        try {
+            Files.createDirectories(reportsFolder);
+            // one job per product, reviews of lazy lists are only read by their job
+            view.forEach((product, reviews) -> reports.add(writers.submit(() -> {
+                List<Review> sorted = new ArrayList<>(reviews);
+                Collections.sort(sorted);
+                for (String lenguageTag : locales.keySet()) {
+                    writeReport(formatter(lenguageTag), product, sorted, reportFile(product, client + "-" + lenguageTag));
+                }
+                return null;
+            })));
+            int failed = 0;
+            for (Future<?> report : reports) {
+                try {
+                    report.get();
+                } catch (ExecutionException ex) {
+                    failed++;
+                    logger.log(Level.WARNING, "Error printing product report " + ex.getCause(), ex.getCause());
+                }
+            }
+            logger.log(Level.INFO, "Printed reports of {0} products in {1} locales ({2} failed) in {3} ms using {4} threads",
+                    new Object[]{reports.size(), locales.size(), failed, (System.nanoTime() - start) / 1_000_000, threads});
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Product reports interrupted", ex);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error printing product reports " + ex.toString(), ex);
+        } finally {
+            writers.shutdownNow();
+            metrics.record(Metrics.Operation.PRINT_PRODUCT_REPORTS, metered);
+        }
+    }
 
-        List<Review> reviews = products.get(product);
+    /**
+     * Writes the report of one product to {@code out}, review by review.
+     * {@code out} is flushed, not closed.
+     */
+    public void printProductReport(int id, String lenguageTag, Writer out) throws ProductManagerException, IOException {
+        awaitReady();
+        long start = metrics.start();
+        try {
+            Product product = this.product(id);
+            if (renderCache.isEnabled()) {
+                out.write(renderReport(product, lenguageTag).text);
+            } else {
+                List<Review> reviews = reviewsOf(product);
+                Collections.sort(reviews);
+                writeReport(formatter(lenguageTag), product, reviews, out);
+            }
+            out.flush();
+        } finally {
+            metrics.record(Metrics.Operation.PRINT_PRODUCT_REPORT, start);
+        }
+    }
 
-        //StringBuilder txt = new StringBuilder();
-        Path productFile = reportsFolder.resolve(
-                MessageFormat.format(config.getString("report.file"), product.getId(), client));
+    /**
+     * @see #printProductReport(int, String, Writer)
+     */
+    public void printProductReport(int id, String lenguageTag, WritableByteChannel out) throws ProductManagerException, IOException {
+        printProductReport(id, lenguageTag, channelWriter(out));
+    }
 
-        try ( PrintWriter out = new PrintWriter(
-                new OutputStreamWriter(Files.newOutputStream(productFile, StandardOpenOption.CREATE), "UTF-8"))) {
+    private void printProductReport(Product product, List<Review> reviews, String lenguageTag, String client) throws IOException {
 
-            out.append(formatter.formatProduct(product) + System.lineSeparator());
+        ResourceFormatter formatter = formatter(lenguageTag);
+
+        Collections.sort(reviews);
+        writeReport(formatter, product, reviews, reportFile(product, client));
+    }
 
-            out.append("\n");
+    /*
+     * The file is left alone when it still holds this rendering: same
+     * locale and version, not touched since it was written.
+     */
+    private void printProductReport(Product product, String lenguageTag, String client) throws IOException {
+        Report report = renderReport(product, lenguageTag);
+        Path file = reportFile(product, client);
+        String written = writtenReports.get(file);
+        if (written != null && Files.exists(file)
+                && written.equals(lenguageTag + "@" + report.version + "@" + Files.getLastModifiedTime(file))) {
+            return;
+        }
+        Files.writeString(file, report.text, StandardCharsets.UTF_8);
+        FileTime modified = Files.getLastModifiedTime(file);
+        writtenReports.put(file, lenguageTag + "@" + report.version + "@" + modified);
+    }
+
+    /*
+     * Reports are cached per product and locale under the version of the
+     * product's reviews. On a miss the product, its reviews and their
+     * version are read under the same lock, so the text matches the version
+     * it is cached under.
+     */
+    private Report renderReport(Product product, String lenguageTag) throws IOException {
+        int id = product.getId();
+        List<Object> key = List.of(id, lenguageTag);
+        long version;
+        try {
+            lockReviews(id);
+            RatingStats stats = ratingStats.get(id);
+            version = stats == null ? 0 : stats.getVersion();
+        } finally {
+            unlockReviews(id);
+        }
+        String text = renderCache.get(key, version);
+        if (text == null) {
+            List<Review> reviews;
+            try {
+                lockReviews(id);
+                Product current = catalog.get().get(id);
+                product = current == null ? product : current;
+                RatingStats stats = ratingStats.get(id);
+                version = stats == null ? 0 : stats.getVersion();
+                List<Review> list = products.get(product);
+                reviews = list == null ? new ArrayList<>() : new ArrayList<>(list);
+            } finally {
+                unlockReviews(id);
+            }
             Collections.sort(reviews);
+            StringWriter out = new StringWriter();
+            writeReport(formatter(lenguageTag), product, reviews, out);
+            text = out.toString();
+            renderCache.put(key, version, text);
+        }
+        return new Report(version, text);
+    }
 
-            out.append(reviews.isEmpty()
-                    ? formatter.getText("no.review")
-                    : reviews.stream().map(r -> formatter.formatReview(r) + "\n")
-                            .collect(Collectors.joining()));
+    private static class Report {
+
+        private final long version;
+        private final String text;
+
+        Report(long version, String text) {
+            this.version = version;
+            this.text = text;
         }
+    }
 
-        //System.out.println(txt);
+    private Path reportFile(Product product, String client) {
+        return reportsFolder.resolve(
+                MessageFormat.format(config.getString("report.file"), product.getId(), client));
     }
 
-    public void printProducts(Comparator<Product> sorter, String lenguageTag) {
+    private void writeReport(ResourceFormatter formatter, Product product, List<Review> reviews, Path productFile) throws IOException {
+
+        try ( Writer out = Files.newBufferedWriter(productFile, Charset.forName("UTF-8"),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeReport(formatter, product, reviews, out);
+        }
+    }
+
+    private void writeReport(ResourceFormatter formatter, Product product, List<Review> reviews, Writer out) throws IOException {
 
-        ResourceFormatter formatter = formatters.getOrDefault(lenguageTag, formatters.get("en-GB"));
+        formatter.appendProduct(out, product);
+        out.append(System.lineSeparator());
 
-        StringBuilder txt = new StringBuilder();
+        out.append("\n");
 
-        products.keySet()
-                .stream()
-                .sorted(sorter)
-                // .filter(filter)
-                .forEach(p -> txt.append(formatter.formatProduct(p) + "\n"));
+        if (reviews.isEmpty()) {
+            out.append(formatter.getText("no.review"));
+        }
+        for (Review review : reviews) {
+            formatter.appendReview(out, review);
+            out.append('\n');
+        }
+    }
 
-        System.out.println(txt);
+    /**
+     * Returns one page of a product's reviews, best rated first. Only the
+     * first {@code offset + limit} reviews in that order are kept while
+     * scanning, the rest are never sorted or copied.
+     *
+     * @throws IllegalArgumentException if {@code offset} or {@code limit}
+     * is negative
+     */
+    public List<Review> getReviews(int id, int offset, int limit) throws ProductManagerException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Negative offset " + offset + " or limit " + limit);
+        }
+        awaitReady();
+        Product product = product(id);
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        PriorityQueue<Review> best = new PriorityQueue<>(Math.max(1, Math.min(wanted, 1024)),
+                Collections.reverseOrder());
+        try {
+            lockReviews(id);
+            List<Review> reviews = products.get(product);
+            if (reviews != null && wanted > 0) {
+                for (Review review : reviews) {
+                    if (best.size() < wanted) {
+                        best.add(review);
+                    } else if (review.compareTo(best.peek()) < 0) {
+                        best.poll();
+                        best.add(review);
+                    }
+                }
+            }
+        } finally {
+            unlockReviews(id);
+        }
+        List<Review> page = new ArrayList<>(best);
+        Collections.sort(page);
+        return offset >= page.size() ? new ArrayList<>() : new ArrayList<>(page.subList(offset, page.size()));
+    }
 
+    /*
+     * Copy of the product's reviews, safe to sort and to read without locks.
+     */
+    private List<Review> reviewsOf(Product product) {
+        try {
+            lockReviews(product.getId());
+            List<Review> reviews = products.get(product);
+            return reviews == null ? new ArrayList<>() : new ArrayList<>(reviews);
+        } finally {
+            unlockReviews(product.getId());
+        }
+    }
+
+    public void printProducts(Comparator<Product> sorter, String lenguageTag) {
+        printProducts(ALL, sorter, Integer.MAX_VALUE, lenguageTag);
     }
 
     public void dumpData() {
+        awaitReady();
+        long start = metrics.start();
+        writeSnapshot();
+        metrics.record(Metrics.Operation.DUMP_DATA, start);
+    }
+
+    private long writeSnapshot() {
         try {
             if (Files.notExists(tempFolder)) {
                 Files.createDirectories(tempFolder);
@@ -250,81 +1136,462 @@ public class ProductManager {
             String textData = MessageFormat.format(config.getString("temp.file"), "DumpBeta");
 
             Path tempFile = tempFolder.resolve(textData);
-            try ( ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
-
-                out.writeObject(products);
-                // products = new HashMap<>();
+            // no "tmp" suffix, restoreData never picks up a half written file
+            Path partFile = tempFolder.resolve(textData + ".part");
 
+            snapshotLock.lock();
+            try {
+                long start = System.nanoTime();
+                SnapshotFile.Contents view;
+                long paused;
+                try ( View captured = captureView()) {
+                    paused = System.nanoTime() - start;
+                    view = captured.contents();
+                }
+
+                SnapshotFile.write(partFile, view.getData(), view.getLogSequence());
+                Files.move(partFile, tempFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // the rename itself is only durable once the folder is
+                SnapshotFile.forceDirectory(tempFolder);
+
+                logger.log(Level.INFO, "Snapshot of {0} products written in {1} ms, writers paused {2} ms",
+                        new Object[]{view.getData().size(), (System.nanoTime() - start) / 1_000_000, paused / 1_000_000});
+                return view.getLogSequence();
+            } finally {
+                snapshotLock.unlock();
             }
-        } catch (IOException ex) {
+        } catch (IOException | ArithmeticException ex) {
             logger.log(Level.WARNING, "Error dumping data " + ex.getMessage(), ex);
         }
+        return -1;
     }
 
-    @SuppressWarnings("unchecked")
-    public void restoreData() {
+    /*
+     * Consistent view of all products and reviews. Writers are only paused
+     * to take the current catalog, the store and the log sequence, nothing
+     * is copied under the write lock; the view is open until closed.
+     */
+    private View captureView() {
         try {
-            Path tempFile = Files.list(tempFolder)
-                    .filter(path -> path.getFileName().toString().endsWith("tmp"))
-                    .findFirst().orElseThrow();
+            writeLock.lock();
+            View view = new View(catalog.get(), products, reviewLog == null ? 0 : reviewLog.lastSequence());
+            openViews.add(view);
+            return view;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            try ( ObjectInputStream in
-                    = new ObjectInputStream(Files.newInputStream(tempFile, StandardOpenOption.READ))) {
+    /*
+     * Products of one catalog version with their reviews as they were at
+     * that version. Review lists only grow: while the view is open, a
+     * writer notes how long a list is before it first appends to it, and
+     * the view copies each list up to that mark, or whole when it was not
+     * touched. Lists are copied one product at a time under the product's
+     * own lock.
+     */
+    private class View implements AutoCloseable {
+
+        private final Catalog catalog;
+        private final Map<Product, List<Review>> store;
+        private final long logSequence;
+        // by list identity, a restore replaces the lists of the same ids
+        private final Map<List<Review>, Integer> marks = Collections.synchronizedMap(new IdentityHashMap<>());
+
+        private View(Catalog catalog, Map<Product, List<Review>> store, long logSequence) {
+            this.catalog = catalog;
+            this.store = store;
+            this.logSequence = logSequence;
+        }
 
-                products = (HashMap) in.readObject();
+        /*
+         * Called under the product's lock, before the list grows.
+         */
+        private void mark(List<Review> reviews) {
+            marks.putIfAbsent(reviews, ReviewCache.mark(reviews));
+        }
 
+        private List<Review> reviews(Product product) {
+            int id = product.getId();
+            try {
+                lockReviews(id);
+                List<Review> reviews = store.get(product);
+                if (reviews == null) {
+                    return new ArrayList<>();
+                }
+                Integer mark = marks.get(reviews);
+                // lazy lists are not read here, their copies read the source when used
+                return ReviewCache.copyOf(reviews, mark != null ? mark : ReviewCache.mark(reviews));
+            } finally {
+                unlockReviews(id);
             }
+        }
+
+        private SnapshotFile.Contents contents() {
+            Map<Product, List<Review>> data = new HashMap<>(catalog.size() * 4 / 3 + 1);
+            for (Product product : catalog.products()) {
+                data.put(product, reviews(product));
+            }
+            return new SnapshotFile.Contents(data, logSequence);
+        }
+
+        @Override
+        public void close() {
+            openViews.remove(this);
+        }
+    }
 
-        } catch (ClassNotFoundException | IOException ex) {
+    public void restoreData() {
+        awaitReady();
+        long start = metrics.start();
+        // a snapshot being written still reads the lists this replaces
+        snapshotLock.lock();
+        try {
+            writeLock.lock();
+            long logSequence = restoreSnapshot();
+            if (logSequence < 0) {
+                throw new IOException("No snapshot found in " + tempFolder);
+            }
+            if (reviewLog != null) {
+                // changes applied before the lock was taken may still be queued,
+                // replaying without them would drop them until the next restart
+                awaitDurable(reviewLog.flush());
+                reviewLog.replay(logSequence, replayer);
+            }
+        } catch (IOException ex) {
 
             logger.log(Level.WARNING, "Error dumping data " + ex.getMessage(), ex);
+        } finally {
+            writeLock.unlock();
+            snapshotLock.unlock();
+            metrics.record(Metrics.Operation.RESTORE_DATA, start);
         }
     }
 
-    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String lenguageTag) {
+    /*
+     * Replaces the data with the snapshot in the temp folder and returns the
+     * last review log sequence it covers, or -1 when there is no snapshot.
+     */
+    private long restoreSnapshot() throws IOException {
+        if (Files.notExists(tempFolder)) {
+            return -1;
+        }
+        Optional<Path> tempFile;
+        try ( Stream<Path> list = Files.list(tempFolder)) {
+            tempFile = list
+                    .filter(path -> path.getFileName().toString().endsWith("tmp"))
+                    .findFirst();
+        }
+        if (tempFile.isEmpty()) {
+            return -1;
+        }
+        if (reviewCache != null) {
+            reviewCache.clear();
+        }
+        SnapshotFile.Contents snapshot = SnapshotFile.read(tempFile.get(), reviewCache, owns);
+        products = newStore(snapshot.getData());
+        reindex();
+        return snapshot.getLogSequence();
+    }
 
-        try{
-            
-            readLock.lock();
-            
-            ResourceFormatter formatter = formatters.getOrDefault(lenguageTag, formatters.get("en-GB"));
+    /*
+     * Startup with the review log enabled: latest snapshot (or the data
+     * folder when no snapshot was taken yet) plus the log records written
+     * after it. Sealed log segments are folded into a new snapshot in the
+     * background. Over the data folder, reviews the watcher read from its
+     * review files are not replayed, the files still hold them.
+     */
+    private void recover() {
+        long logSequence = -1;
+        try {
+            logSequence = restoreSnapshot();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error restoring snapshot, loading the data folder " + ex.getMessage(), ex);
+        }
+        boolean dataFolder = logSequence < 0;
+        if (dataFolder) {
+            loadAllData();
+            logSequence = 0;
+        }
+        long lastSequence = logSequence;
+        try {
+            lastSequence = reviewLog.replay(logSequence, dataFolder ? folderReplayer : replayer);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error replaying review log " + ex.getMessage(), ex);
+        }
+        try {
+            reviewLog.start(lastSequence);
+        } catch (IOException ex) {
+            // every change waits for the writer, better not to start at all
+            throw new UncheckedIOException("Error starting review log " + ex.getMessage(), ex);
+        }
 
-            StringBuilder txt = new StringBuilder();
+        long interval = Long.parseLong(setting("log.compaction.interval", "300"));
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "review-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactLog, interval, interval, TimeUnit.SECONDS);
+    }
 
-            products.keySet()
-                    .stream()
-                    .sorted(sorter)
-                    .filter(filter)
-                    .forEach(p -> txt.append(formatter.formatProduct(p) + "\n"));
+    private void compactLog() {
+        try {
+            if (reviewLog.hasSealedSegments()) {
+                long logSequence = writeSnapshot();
+                if (logSequence >= 0) {
+                    reviewLog.compact(logSequence);
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error compacting review log " + ex.getMessage(), ex);
+        }
+    }
 
-            System.out.println(txt);
-            
-        }finally{
-            
-            readLock.unlock();
-            
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String lenguageTag) {
+        printProducts(filter, sorter, Integer.MAX_VALUE, lenguageTag);
+    }
+
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit, String lenguageTag) {
+
+        long start = metrics.start();
+        // System.out is not ours to close, only flushed
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            writeProducts(filter, sorter, limit, lenguageTag, out);
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error printing products " + ex.toString(), ex);
+        } finally {
+            metrics.record(Metrics.Operation.PRINT_PRODUCTS, start);
         }
 
     }
 
-    private void loadAllData() {
+    /**
+     * Writes the listing to {@code out} one product at a time, so a slow
+     * writer holds the listing back rather than letting it pile up in
+     * memory. With {@link #BY_RATING} or {@link #BY_PRICE} the products are
+     * read from the catalog index as they are written and memory use does
+     * not depend on the number of products; other orders sort references to
+     * the matching products first. {@code out} is flushed, not closed.
+     */
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit,
+            String lenguageTag, Writer out) throws IOException {
+        long start = metrics.start();
         try {
+            writeProducts(filter, sorter, limit, lenguageTag, out);
+            out.flush();
+        } finally {
+            metrics.record(Metrics.Operation.PRINT_PRODUCTS, start);
+        }
+    }
+
+    /**
+     * Writes the listing as UTF-8 to a blocking channel through a fixed
+     * size buffer; writes wait for the channel to take the data. The
+     * channel is left open.
+     *
+     * @see #printProducts(Predicate, Comparator, int, String, Writer)
+     */
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit,
+            String lenguageTag, WritableByteChannel out) throws IOException {
+        printProducts(filter, sorter, limit, lenguageTag, channelWriter(out));
+    }
+
+    /*
+     * Only listings of ALL products in BY_RATING or BY_PRICE order are
+     * cached, under the catalog version they were read from and keyed by
+     * the order's name. Other filters and orders are usually built per
+     * call, so keying on them would hold on to the caller's lambdas and
+     * never hit. Listings too long to cache are still streamed.
+     */
+    private void writeProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit,
+            String lenguageTag, Writer out) throws IOException {
+        awaitReady();
+        Catalog current = catalog.get();
+        if (!renderCache.isEnabled() || filter != ALL || (sorter != BY_RATING && sorter != BY_PRICE)) {
+            writeProducts(current, filter, sorter, limit, lenguageTag, out);
+            return;
+        }
+        List<Object> key = List.of(sorter == BY_RATING ? "rating" : "price", limit, lenguageTag);
+        String listing = renderCache.get(key, current.getVersion());
+        if (listing != null) {
+            out.write(listing);
+            return;
+        }
+        RenderCache.Capture capture = renderCache.capture(out);
+        writeProducts(current, filter, sorter, limit, lenguageTag, capture);
+        listing = capture.getText();
+        if (listing != null) {
+            renderCache.put(key, current.getVersion(), listing);
+        }
+    }
+
+    private void writeProducts(Catalog current, Predicate<Product> filter, Comparator<Product> sorter, int limit,
+            String lenguageTag, Writer out) throws IOException {
+        ResourceFormatter formatter = formatter(lenguageTag);
+        Iterator<Product> products = listProducts(current, filter, sorter, limit);
+        while (products.hasNext()) {
+            formatter.appendProduct(out, products.next());
+            out.write('\n');
+        }
+    }
+
+    /*
+     * Index orders are walked lazily; findProducts materializes the others.
+     */
+    private Iterator<Product> listProducts(Catalog current, Predicate<Product> filter, Comparator<Product> sorter,
+            int limit) {
+        PersistentSortedSet<Product> sorted = sorter == BY_RATING ? current.byRating()
+                : sorter == BY_PRICE ? current.byPrice() : null;
+        if (sorted != null) {
+            return sorted.stream().filter(filter).limit(limit).iterator();
+        }
+        return findProducts(current, filter, sorter, limit).iterator();
+    }
+
+    // only ever flushed, so the channel stays open for the caller
+    private static Writer channelWriter(WritableByteChannel channel) {
+        return Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 8192);
+    }
+
+    /**
+     * Returns at most {@code limit} products that pass the filter, in
+     * {@code sorter} order. The filter is applied before sorting. With
+     * {@link #BY_RATING} or {@link #BY_PRICE} the matching index is walked
+     * in order until the limit is reached; any other order keeps only the
+     * best {@code limit} products in a bounded heap. The result comes from
+     * one catalog version and is read without locking.
+     */
+    public List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit) {
+        awaitReady();
+        return findProducts(catalog.get(), filter, sorter, limit);
+    }
+
+    private List<Product> findProducts(Catalog current, Predicate<Product> filter, Comparator<Product> sorter,
+            int limit) {
+
+        PersistentSortedSet<Product> sorted = sorter == BY_RATING ? current.byRating()
+                : sorter == BY_PRICE ? current.byPrice() : null;
+        if (sorted != null) {
+            return sorted.stream()
+                    .filter(filter)
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
 
-            this.products = Files.list(dataFolder)
-                    .filter(file -> file.getFileName().toString().startsWith("product"))
-                    .map(file -> loadProduct(file)).filter(product -> product != null)
-                    .collect(Collectors.toMap(product -> product, product -> loadReviews(product)));
+        List<Product> all = current.products();
+        if (limit >= all.size()) {
+            return all.stream()
+                    .filter(filter)
+                    .sorted(sorter)
+                    .collect(Collectors.toList());
+        }
+
+        // worst of the best so far on top
+        PriorityQueue<Product> best = new PriorityQueue<>(limit + 1, sorter.reversed());
+        for (Product product : all) {
+            if (filter.test(product)) {
+                if (best.size() < limit) {
+                    best.add(product);
+                } else if (limit > 0 && sorter.compare(product, best.peek()) < 0) {
+                    best.poll();
+                    best.add(product);
+                }
+            }
+        }
+        List<Product> top = new ArrayList<>(best);
+        top.sort(sorter);
+        return top;
 
+    }
+
+    private void loadAllData() {
+        long start = System.nanoTime();
+        boolean measureHeap = Boolean.parseBoolean(setting("heap.measure", "false"));
+        long heapBefore = measureHeap ? retainedHeap() : 0;
+        List<Path> files;
+        try ( Stream<Path> list = Files.list(dataFolder)) {
+            files = list.filter(file -> file.getFileName().toString().startsWith("product"))
+                    .collect(Collectors.toList());
         } catch (IOException ex) {
             logger.log(Level.WARNING, "Error loading data " + ex.getMessage(), ex);
+            return;
+        }
+
+        int threads = Math.max(1, Integer.parseInt(setting("data.load.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        ExecutorService loader = Executors.newFixedThreadPool(threads);
+        CompletionService<Map.Entry<Product, List<Review>>> completion = new ExecutorCompletionService<>(loader);
+        Map<Product, List<Review>> data = new HashMap<>(files.size() * 4 / 3 + 1);
+        // reviews go off-heap as each file is read, not after the whole catalog is on the heap
+        ReviewColumns columns = columnar ? newColumns() : null;
+        try {
+            files.forEach(file -> completion.submit(() -> {
+                Product product = loadProduct(file);
+                if (product == null || !owns.test(product.getId())) {
+                    return null;
+                }
+                return Map.entry(product, reviewCache != null ? reviewCache.lazyList(product)
+                        : columns != null ? columns.newList(loadReviews(product)) : loadReviews(product));
+            }));
+
+            int step = Math.max(1, files.size() / 10);
+            for (int done = 1; done <= files.size(); done++) {
+                try {
+                    Map.Entry<Product, List<Review>> entry = completion.take().get();
+                    if (entry != null) {
+                        data.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                } catch (ExecutionException ex) {
+                    logger.log(Level.WARNING, "Error loading product " + ex.getCause(), ex.getCause());
+                }
+                if (done % step == 0) {
+                    logger.log(Level.INFO, "Loaded {0} of {1} product files",
+                            new Object[]{done, files.size()});
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Data loading interrupted", ex);
+        } finally {
+            loader.shutdownNow();
+        }
+
+        this.products = newStore(data, columns);
+        reindex();
+        loadedDataFolder = true;
+        metrics.record(Metrics.Operation.LOAD_ALL_DATA, start);
+        logger.log(Level.INFO, "Loaded {0} products in {1} ms using {2} threads",
+                new Object[]{data.size(), (System.nanoTime() - start) / 1_000_000, threads});
+        if (measureHeap) {
+            logger.log(Level.INFO, "Catalog retains {0} KB of heap ({1} layout)", new Object[]{
+                (retainedHeap() - heapBefore) / 1024, columnar ? "columnar" : "object"});
         }
     }
 
+    private void reindex() {
+        long version = catalog.get().getVersion() + 1;
+        IntHashMap<RatingStats> newStats = new IntHashMap<>(products.size());
+        products.forEach((product, reviews) -> {
+            RatingStats stats = new RatingStats(reviews);
+            stats.setVersion(version);
+            newStats.put(product.getId(), stats);
+        });
+        ratingStats = newStats;
+        catalog.set(Catalog.of(version, products.keySet()));
+    }
+
     private Product loadProduct(Path file) {
         Product product = null;
 
-        try {
-            product = parseProduct(Files.lines(dataFolder.resolve(file), Charset.forName("UTF-8")).findFirst().orElseThrow());
+        try ( BufferedReader in = Files.newBufferedReader(file, Charset.forName("UTF-8"))) {
+            String text = in.readLine();
+            if (text != null) {
+                product = parseProduct(text);
+            }
         } catch (IOException ex) {
             logger.log(Level.WARNING, "Error loading product " + ex.getMessage(), ex);
         }
@@ -334,18 +1601,20 @@ public class ProductManager {
 
     private List<Review> loadReviews(Product product) {
 
-        List<Review> reviews = null;
+        List<Review> reviews = new ArrayList<>();
 
         Path file = dataFolder.resolve(MessageFormat.format(config.getString("review.data.file"), product.getId()));
 
-        if (!Files.exists(file)) {
-            reviews = new ArrayList<>();
-        } else {
+        if (Files.exists(file)) {
             try {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
+                byte[] bytes = Files.readAllBytes(file);
+                reviews = new String(bytes, StandardCharsets.UTF_8).lines()
                         .map(text -> this.parseReview(text))
                         .filter(review -> review != null)
-                        .collect(Collectors.toList());
+                        .collect(Collectors.toCollection(ArrayList::new));
+                if (loadedReviewBytes != null) {
+                    loadedReviewBytes.put(product.getId(), (long) bytes.length);
+                }
             } catch (IOException ex) {
                 logger.log(Level.WARNING, "Error loading review " + ex.getMessage(), ex);
             }
@@ -358,11 +1627,10 @@ public class ProductManager {
     public Review parseReview(String text) {
         Review review = null;
         try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]);
-            //reviewProduct ( Integer.parseInt((String)values[0]), Rateable.convert(Integer.parseInt((String)values[1])), (String)values[2]);
-        } catch (ParseException | NumberFormatException ex) {
-            logger.log(Level.WARNING, "Error parsing review" + text);
+            review = RecordParser.parseReview(text);
+        } catch (ParseException ex) {
+            logger.log(Level.WARNING, "Error parsing review " + text + ": "
+                    + ex.getMessage() + " at " + ex.getErrorOffset());
         }
         return review;
     }
@@ -370,93 +1638,61 @@ public class ProductManager {
     public Product parseProduct(String text) {
         Product product = null;
         try {
+            product = RecordParser.parseProduct(text, names);
+        } catch (ParseException ex) {
+            logger.log(Level.WARNING, "Error parsing product " + text + ": "
+                    + ex.getMessage() + " at " + ex.getErrorOffset());
+        }
+        return product;
+    }
 
-            Object[] values = productFormat.parse(text);
-
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values[2];
-            BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
-            Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
-
-            switch ((String) values[0]) {
-                case "D":
-                    product = new Drink(id, name, price, rating);//this.createProduct(id, name, price, rating);
-                    break;
+    /*
+     * Number of products per Rating ordinal, followed by the sum of their
+     * discounts in cents, all from one catalog version.
+     */
+    long[] getDiscountTotals() {
+        awaitReady();
+        Catalog current = catalog.get();
+        Rating[] ratings = Rating.values();
+        long[] totals = new long[ratings.length * 2];
+        for (Rating rating : ratings) {
+            totals[rating.ordinal()] = current.getRatedProducts(rating);
+            totals[ratings.length + rating.ordinal()] = current.getRatedDiscounts(rating);
+        }
+        return totals;
+    }
 
-                case "F":
-                    LocalDate bestBefore = LocalDate.parse((String) values[5]);
-                    product = new Food(id, name, price, rating, bestBefore); //this.createProduct(id, name, price, rating, bestBefore);
-                    break;
+    static Map<String, String> formatDiscounts(long[] totals, String lenguageTag) {
+        ResourceFormatter formatter = formatter(lenguageTag);
+        Rating[] ratings = Rating.values();
 
+        Map<String, String> discounts = new HashMap<>();
+        for (Rating rating : ratings) {
+            if (totals[rating.ordinal()] > 0) {
+                discounts.put(rating.getStars(), formatter.formatMoney(
+                        BigDecimal.valueOf(totals[ratings.length + rating.ordinal()], Product.PRICE_SCALE)));
             }
-
-        } catch (ParseException | NumberFormatException | DateTimeParseException ex) {
-            logger.log(Level.WARNING, "Error parsing review " + text);
         }
+        return discounts;
+    }
 
-        return product;
+    static ResourceFormatter formatter(String lenguageTag) {
+        String tag = lenguageTag != null && locales.containsKey(lenguageTag) ? lenguageTag : "en-GB";
+        return formatters.computeIfAbsent(tag, key -> new ResourceFormatter(locales.get(key)));
     }
 
     public Map<String, String> getDiscounts(String lenguageTag) {
 
+        long start = metrics.start();
         try{
-            readLock.lock();
-            
-            ResourceFormatter formatter = formatters.getOrDefault(lenguageTag, formatters.get("en-GB"));
-
-            return products.keySet()
-                .stream()
-                .collect(
-                        Collectors.groupingBy(
-                                product -> product.getRating().getStars(),
-                                Collectors.collectingAndThen(
-                                        Collectors.summingDouble(
-                                                product -> product.getDiscount().doubleValue()),
-                                        discount -> formatter.moneyFormat.format(discount))));
-
+            return formatDiscounts(getDiscountTotals(), lenguageTag);
         }finally{
             
-            readLock.unlock();
+            metrics.record(Metrics.Operation.GET_DISCOUNTS, start);
             
         }
         
         
     }
 
-    private static class ResourceFormatter {
-
-        private Locale locale;
-        private ResourceBundle resources;
-        private DateTimeFormatter dateFormat;
-        private NumberFormat moneyFormat;
-
-        private ResourceFormatter(Locale locale) {
-
-            this.locale = locale;
-
-            this.resources = ResourceBundle.getBundle("labs.pm.data.resources", locale);
-            this.dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
-            this.moneyFormat = NumberFormat.getCurrencyInstance(locale);
-
-        }
-
-        private String formatProduct(Product product) {
-            return MessageFormat.format(resources.getString("product"),
-                    product.getName(),
-                    moneyFormat.format(product.getPrice()),
-                    product.getRating(),
-                    product.getRating().getStars(),
-                    dateFormat.format(product.getBestBefore()));
-
-        }
-
-        private String formatReview(Review review) {
-            return MessageFormat.format(resources.getString("review"), review.getRating().getStars(), review.getComments());
-        }
-
-        private String getText(String key) {
-            return resources.getString(key);
-        }
-    }
-
 }
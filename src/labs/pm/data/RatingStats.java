@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Running rating aggregate of a product: number of reviews, sum of the
+ * rating ordinals and one counter per {@link Rating}. Adding a review is
+ * O(1) so the average never needs to walk the review list. Stats built
+ * from an existing review list only walk it on first use, so lists that
+ * are loaded lazily stay unloaded until needed.
+ *
+ * @author Marti
+ */
+public class RatingStats {
+
+    private int count;
+    private long sum;
+    private final int[] histogram;
+    private List<Review> pending;
+    // catalog version that last changed the product or its reviews
+    private long version;
+
+    RatingStats() {
+        this.histogram = new int[Rating.values().length];
+    }
+
+    /**
+     * Stats of the given reviews, counted on first use. Reviews added to
+     * the list afterwards must not be passed to {@link #add(Rating)}
+     * before that first use.
+     */
+    RatingStats(List<Review> reviews) {
+        this();
+        this.pending = reviews;
+    }
+
+    private RatingStats(RatingStats other) {
+        this.count = other.count;
+        this.sum = other.sum;
+        this.histogram = Arrays.copyOf(other.histogram, other.histogram.length);
+        this.version = other.version;
+    }
+
+    private void fold() {
+        if (pending != null) {
+            List<Review> reviews = pending;
+            pending = null;
+            reviews.forEach(review -> add(review.getRating()));
+        }
+    }
+
+    void add(Rating rating) {
+        fold();
+        count++;
+        sum += rating.ordinal();
+        histogram[rating.ordinal()]++;
+    }
+
+    RatingStats copy() {
+        fold();
+        return new RatingStats(this);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    public int getCount() {
+        fold();
+        return count;
+    }
+
+    public int getCount(Rating rating) {
+        fold();
+        return histogram[rating.ordinal()];
+    }
+
+    public long getSum() {
+        fold();
+        return sum;
+    }
+
+    public double getAverage() {
+        fold();
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the average rounded to the nearest {@link Rating}, the same
+     * way {@code reviewProduct} rates a product.
+     */
+    public Rating getAverageRating() {
+        return Rateable.convert((int) Math.round(getAverage()));
+    }
+}
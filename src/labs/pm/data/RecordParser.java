@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Parser for the product and review data lines, for example
+ * {@code D,101,Tea,1.99,0} or {@code F,104,Chocolate,0.99,0,2020-05-19}
+ * and {@code 4,Nice hot cup of tea}. It walks the characters once, reads
+ * numbers, prices and dates in place and reports problems as a
+ * {@link ParseException} carrying the offset of the offending field. A
+ * line must be consumed to its end, trailing data is an error.
+ * <p>
+ * Each parse creates its own instance holding the line and the current
+ * position, so the static methods are safe to use from any thread.
+ *
+ * @author Marti
+ */
+class RecordParser {
+
+    private static final char SEPARATOR = ',';
+
+    private final CharSequence text;
+    private int position;
+
+    private RecordParser(CharSequence text) {
+        this.text = text;
+    }
+
+    static Product parseProduct(CharSequence text) throws ParseException {
+        return parseProduct(text, UnaryOperator.identity());
+    }
+
+    /**
+     * @param names applied to the product name, for example a
+     * {@link StringDictionary} sharing repeated names
+     */
+    static Product parseProduct(CharSequence text, UnaryOperator<String> names) throws ParseException {
+        RecordParser parser = new RecordParser(text);
+        int start = parser.position;
+        char type = parser.nextChar();
+        parser.separator();
+        int id = parser.nextInt();
+        parser.separator();
+        String name = names.apply(parser.nextField());
+        parser.separator();
+        BigDecimal price = parser.nextPrice();
+        parser.separator();
+        Rating rating = Rateable.convert(parser.nextInt());
+
+        switch (type) {
+            case 'D':
+                // drink lines may carry one unused numeric column, e.g. D,101,Tea,1.99,0,0
+                if (!parser.atEnd()) {
+                    parser.separator();
+                    parser.nextInt();
+                }
+                parser.end();
+                return new Drink(id, name, price, rating);
+            case 'F':
+                parser.separator();
+                LocalDate bestBefore = parser.nextDate();
+                parser.end();
+                return new Food(id, name, price, rating, bestBefore);
+            default:
+                throw new ParseException("Unknown product type '" + type + "'", start);
+        }
+    }
+
+    static Review parseReview(CharSequence text) throws ParseException {
+        RecordParser parser = new RecordParser(text);
+        Rating rating = Rateable.convert(parser.nextInt());
+        parser.separator();
+        String comments = parser.text.subSequence(parser.position, parser.text.length()).toString();
+        return new Review(rating, comments);
+    }
+
+    private boolean atEnd() {
+        return position >= text.length();
+    }
+
+    private char nextChar() throws ParseException {
+        if (atEnd()) {
+            throw new ParseException("Unexpected end of record", position);
+        }
+        return text.charAt(position++);
+    }
+
+    private void separator() throws ParseException {
+        int start = position;
+        if (nextChar() != SEPARATOR) {
+            throw new ParseException("Expected '" + SEPARATOR + "'", start);
+        }
+    }
+
+    private void end() throws ParseException {
+        if (!atEnd()) {
+            throw new ParseException("Unexpected trailing data", position);
+        }
+    }
+
+    private String nextField() throws ParseException {
+        int start = position;
+        while (!atEnd() && text.charAt(position) != SEPARATOR) {
+            position++;
+        }
+        if (position == start) {
+            throw new ParseException("Empty field", start);
+        }
+        return text.subSequence(start, position).toString();
+    }
+
+    private int nextInt() throws ParseException {
+        int start = position;
+        boolean negative = !atEnd() && text.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        long value = digits(9);
+        if (position == start + (negative ? 1 : 0)) {
+            throw new ParseException("Expected a number", start);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /*
+     * Reads up to max decimal digits, stopping at the first other character.
+     */
+    private long digits(int max) throws ParseException {
+        int start = position;
+        long value = 0;
+        while (!atEnd()) {
+            char c = text.charAt(position);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            if (position - start == max) {
+                throw new ParseException("Number too long", start);
+            }
+            value = value * 10 + (c - '0');
+            position++;
+        }
+        return value;
+    }
+
+    private BigDecimal nextPrice() throws ParseException {
+        int start = position;
+        long unscaled = digits(15);
+        int intDigits = position - start;
+        int scale = 0;
+        if (!atEnd() && text.charAt(position) == '.') {
+            position++;
+            int fractionStart = position;
+            long fraction = digits(18 - intDigits);
+            scale = position - fractionStart;
+            for (int i = 0; i < scale; i++) {
+                unscaled *= 10;
+            }
+            unscaled += fraction;
+        }
+        if (intDigits == 0 && scale == 0) {
+            throw new ParseException("Expected a price", start);
+        }
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    private LocalDate nextDate() throws ParseException {
+        int start = position;
+        int year = fixedDigits(4);
+        dash();
+        int month = fixedDigits(2);
+        dash();
+        int day = fixedDigits(2);
+        try {
+            return LocalDate.of(year, month, day);
+        } catch (DateTimeException ex) {
+            throw new ParseException("Invalid date: " + ex.getMessage(), start);
+        }
+    }
+
+    private int fixedDigits(int count) throws ParseException {
+        int start = position;
+        int value = (int) digits(count);
+        if (position - start != count) {
+            throw new ParseException("Expected " + count + " digits", start);
+        }
+        return value;
+    }
+
+    private void dash() throws ParseException {
+        int start = position;
+        if (nextChar() != '-') {
+            throw new ParseException("Expected '-'", start);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static labs.pm.data.ShardProtocol.*;
+
+/**
+ * Shard served by a {@link ShardServer}, over one connection that carries
+ * one request at a time.
+ * <p>
+ * Filters and comparators cannot cross the socket: listings in
+ * {@link ProductManager#BY_RATING} or {@link ProductManager#BY_PRICE} order
+ * arrive sorted, others arrive unsorted, and the filter, order and limit
+ * are applied here. Only an {@link ProductManager#ALL} listing in one of
+ * those two orders is cut to the limit by the shard, any other listing
+ * has the shard send all its products.
+ *
+ * @author Marti
+ */
+class RemoteShard implements Shard {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    RemoteShard(InetSocketAddress address) throws IOException {
+        this.socket = new Socket(address.getAddress(), address.getPort());
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /*
+     * Sends the request and reads the whole reply; callers hold the monitor
+     * for the call. A connection that fails partway through a frame is
+     * closed, later calls fail straight away.
+     */
+    private DataInputStream call(Message request) throws IOException {
+        if (socket.isClosed()) {
+            throw new IOException("Connection to shard at " + socket.getRemoteSocketAddress() + " is closed");
+        }
+        DataInputStream reply;
+        try {
+            request.send(out);
+            reply = receive(in);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        if (reply.readByte() != OK) {
+            throw new IOException("Shard at " + socket.getRemoteSocketAddress() + " failed: " + readString(reply));
+        }
+        return reply;
+    }
+
+    @Override
+    public synchronized boolean addProduct(Product product) throws IOException {
+        Message request = new Message(ADD_PRODUCT);
+        writeProduct(request, product);
+        return call(request).readBoolean();
+    }
+
+    @Override
+    public synchronized Product findProduct(int id) throws IOException {
+        Message request = new Message(FIND_PRODUCT);
+        request.writeInt(id);
+        return readProduct(call(request));
+    }
+
+    @Override
+    public synchronized Product reviewProduct(int id, Rating rating, String comments) throws IOException {
+        Message request = new Message(REVIEW_PRODUCT);
+        request.writeInt(id);
+        writeReview(request, new Review(rating, comments));
+        return readProduct(call(request));
+    }
+
+    @Override
+    public synchronized int reviewProducts(Map<Integer, ? extends Collection<Review>> batch) throws IOException {
+        Message request = new Message(REVIEW_PRODUCTS);
+        request.writeInt(batch.size());
+        for (Map.Entry<Integer, ? extends Collection<Review>> group : batch.entrySet()) {
+            request.writeInt(group.getKey());
+            request.writeInt(group.getValue().size());
+            for (Review review : group.getValue()) {
+                writeReview(request, review);
+            }
+        }
+        return call(request).readInt();
+    }
+
+    @Override
+    public synchronized List<Review> getReviews(int id, int offset, int limit) throws IOException {
+        Message request = new Message(GET_REVIEWS);
+        request.writeInt(id);
+        request.writeInt(offset);
+        request.writeInt(limit);
+        DataInputStream reply = call(request);
+        int count = reply.readInt();
+        if (count < 0) {
+            return null;
+        }
+        List<Review> reviews = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            reviews.add(readReview(reply));
+        }
+        return reviews;
+    }
+
+    @Override
+    public List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit) throws IOException {
+        byte order = sorter == ProductManager.BY_RATING ? ShardProtocol.BY_RATING
+                : sorter == ProductManager.BY_PRICE ? ShardProtocol.BY_PRICE : UNSORTED;
+        Message request = new Message(LIST_PRODUCTS);
+        request.writeByte(order);
+        // the shard can only cut the listing short when it applies the whole filter and order itself
+        request.writeInt(filter == ProductManager.ALL && order != UNSORTED ? limit : Integer.MAX_VALUE);
+        DataInputStream reply;
+        synchronized (this) {
+            reply = call(request);
+        }
+        // the reply is all in memory, parsed without holding the connection
+        int count = reply.readInt();
+        List<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            products.add(readProduct(reply));
+        }
+        return (order == UNSORTED ? products.stream().filter(filter).sorted(sorter)
+                : products.stream().filter(filter))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public synchronized long[] getDiscountTotals() throws IOException {
+        DataInputStream reply = call(new Message(DISCOUNT_TOTALS));
+        long[] totals = new long[reply.readInt()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = reply.readLong();
+        }
+        return totals;
+    }
+
+    @Override
+    public synchronized void printProductReport(int id, String lenguageTag, String client) throws IOException {
+        Message request = new Message(PRINT_REPORT);
+        request.writeInt(id);
+        writeString(request, lenguageTag);
+        writeString(request, client);
+        call(request);
+    }
+
+    @Override
+    public synchronized void dumpData() throws IOException {
+        call(new Message(DUMP_DATA));
+    }
+
+    @Override
+    public synchronized void restoreData() throws IOException {
+        call(new Message(RESTORE_DATA));
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
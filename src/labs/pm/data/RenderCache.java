@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded cache of rendered reports and listings.
+ * <p>
+ * Every entry is stored with the version of the data it was rendered from
+ * and is only returned for that same version. Looking an entry up with a
+ * newer version drops it and counts an invalidation, so a change is seen by
+ * the very next lookup and never leaves stale text behind. Entries are kept
+ * while their total length stays under the capacity, least recently used
+ * dropped first; a single text longer than an eighth of the capacity is
+ * not cached. A capacity of zero disables the cache.
+ *
+ * @author Marti
+ */
+public class RenderCache implements RenderCacheMXBean {
+
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    RenderCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.maxEntrySize = this.capacity / 8;
+    }
+
+    /**
+     * @return the text cached under {@code key} for {@code version}, or
+     * null
+     */
+    synchronized String get(Object key, long version) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version == version) {
+            hits++;
+            return entry.text;
+        }
+        misses++;
+        if (entry != null && entry.version < version) {
+            entries.remove(key);
+            size -= entry.text.length();
+            invalidations++;
+        }
+        return null;
+    }
+
+    /*
+     * A text rendered from an older version than the cached one, by a
+     * reader that lost a race with a writer, is dropped.
+     */
+    synchronized void put(Object key, long version, String text) {
+        if (!isEnabled() || text.length() > maxEntrySize) {
+            return;
+        }
+        Entry old = entries.get(key);
+        if (old != null) {
+            if (old.version > version) {
+                return;
+            }
+            size -= old.text.length();
+        }
+        entries.put(key, new Entry(version, text));
+        size += text.length();
+        for (Iterator<Entry> eldest = entries.values().iterator(); size > capacity && eldest.hasNext();) {
+            size -= eldest.next().text.length();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return a writer passing everything on to {@code out} and keeping a
+     * copy as long as it is small enough to be cached
+     */
+    Capture capture(Writer out) {
+        return new Capture(out, maxEntrySize);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Clears the counters; cached entries are kept.
+     */
+    @Override
+    public synchronized void reset() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    private static class Entry {
+
+        private final long version;
+        private final String text;
+
+        Entry(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    static class Capture extends Writer {
+
+        private final Writer out;
+        private final long limit;
+        private StringBuilder copy = new StringBuilder();
+
+        private Capture(Writer out, long limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        /**
+         * @return everything written, or null once that grew too large to
+         * be cached
+         */
+        String getText() {
+            return copy == null ? null : copy.toString();
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            if (copy != null) {
+                if (copy.length() + length > limit) {
+                    copy = null;
+                } else {
+                    copy.append(buffer, offset, length);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // the target belongs to the caller
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
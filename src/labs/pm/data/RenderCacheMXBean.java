@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+/**
+ * Management interface of {@link RenderCache}, registered as
+ * {@code labs.pm.data:type=ProductManager,name=RenderCache} when
+ * {@code metrics.enabled=true} and the cache is enabled. Sizes are in
+ * characters.
+ *
+ * @author Marti
+ */
+public interface RenderCacheMXBean {
+
+    boolean isEnabled();
+
+    long getCapacity();
+
+    long getSize();
+
+    int getEntries();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    void reset();
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.text.FieldPosition;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Renders products and reviews for one locale.
+ * <p>
+ * The message patterns are compiled once per locale and reused; since
+ * {@link MessageFormat} and {@link NumberFormat} are not thread safe each
+ * thread keeps its own compiled copy together with a reusable output
+ * buffer. Formatted prices and dates are cached, so a catalog export only
+ * formats each distinct value once per locale.
+ *
+ * @author Marti
+ */
+class ResourceFormatter {
+
+    private static final int MAX_CACHED_VALUES = 10_000;
+
+    private final ResourceBundle resources;
+    private final DateTimeFormatter dateFormat;
+
+    private final ThreadLocal<NumberFormat> moneyFormat;
+    private final ThreadLocal<MessageFormat> productFormat;
+    private final ThreadLocal<MessageFormat> reviewFormat;
+    private final ThreadLocal<StringBuffer> buffer = ThreadLocal.withInitial(() -> new StringBuffer(128));
+
+    private final Map<BigDecimal, String> moneyCache = new ConcurrentHashMap<>();
+    private final Map<LocalDate, String> dateCache = new ConcurrentHashMap<>();
+
+    private static final FieldPosition IGNORED = new FieldPosition(0);
+
+    ResourceFormatter(Locale locale) {
+
+        this.resources = ResourceBundle.getBundle("labs.pm.data.resources", locale);
+        this.dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT).localizedBy(locale);
+
+        String productPattern = resources.getString("product");
+        String reviewPattern = resources.getString("review");
+        this.moneyFormat = ThreadLocal.withInitial(() -> NumberFormat.getCurrencyInstance(locale));
+        this.productFormat = ThreadLocal.withInitial(() -> new MessageFormat(productPattern, locale));
+        this.reviewFormat = ThreadLocal.withInitial(() -> new MessageFormat(reviewPattern, locale));
+    }
+
+    String formatProduct(Product product) {
+        return renderProduct(product).toString();
+    }
+
+    String formatReview(Review review) {
+        return renderReview(review).toString();
+    }
+
+    void appendProduct(Appendable out, Product product) throws IOException {
+        out.append(renderProduct(product));
+    }
+
+    void appendReview(Appendable out, Review review) throws IOException {
+        out.append(renderReview(review));
+    }
+
+    String formatMoney(BigDecimal amount) {
+        String text = moneyCache.get(amount);
+        if (text == null) {
+            text = moneyFormat.get().format(amount);
+            cache(moneyCache, amount, text);
+        }
+        return text;
+    }
+
+    String formatDate(LocalDate date) {
+        String text = dateCache.get(date);
+        if (text == null) {
+            text = dateFormat.format(date);
+            cache(dateCache, date, text);
+        }
+        return text;
+    }
+
+    String getText(String key) {
+        return resources.getString(key);
+    }
+
+    /*
+     * The returned buffer is reused by the next call on this thread.
+     */
+    private StringBuffer renderProduct(Product product) {
+        StringBuffer out = buffer.get();
+        out.setLength(0);
+        return productFormat.get().format(new Object[]{
+            product.getName(),
+            formatMoney(product.getPrice()),
+            product.getRating(),
+            product.getRating().getStars(),
+            formatDate(product.getBestBefore())}, out, IGNORED);
+    }
+
+    private StringBuffer renderReview(Review review) {
+        StringBuffer out = buffer.get();
+        out.setLength(0);
+        return reviewFormat.get().format(new Object[]{
+            review.getRating().getStars(),
+            review.getComments()}, out, IGNORED);
+    }
+
+    private static <K> void cache(Map<K, String> cache, K key, String text) {
+        if (cache.size() >= MAX_CACHED_VALUES) {
+            cache.clear();
+        }
+        cache.put(key, text);
+    }
+}
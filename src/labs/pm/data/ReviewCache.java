@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size bounded cache of review lists that are read on demand.
+ * <p>
+ * {@link #lazyList(Product)} returns a list that reads the product's
+ * reviews from their source, the data folder or a snapshot, the first time
+ * it is used. Reviews added later are kept apart from the ones read, so
+ * adding never reads the source and a list with added reviews can still
+ * drop what it read. Loaded reviews are kept while they and all added
+ * reviews together stay under the capacity; beyond that the least recently
+ * used lists drop their loaded reviews, using the CLOCK approximation of
+ * LRU so that reading a list only sets a flag. Added reviews cannot be read
+ * again and stay, they only push loaded reviews out.
+ *
+ * @author Marti
+ */
+public class ReviewCache implements ReviewCacheMXBean {
+
+    private static final Logger logger = Logger.getLogger(ReviewCache.class.getName());
+
+    private final Function<Product, List<Review>> loader;
+    private final long capacity;
+
+    private final ArrayDeque<LazyReviews> clock = new ArrayDeque<>();
+    private long cachedReviews;
+    private final LongAdder addedReviews = new LongAdder();
+    private long loads;
+    private long evictions;
+    private boolean overCapacity;
+
+    ReviewCache(Function<Product, List<Review>> loader, long capacity) {
+        this.loader = loader;
+        this.capacity = capacity;
+    }
+
+    List<Review> lazyList(Product product) {
+        return new LazyReviews(() -> loader.apply(product));
+    }
+
+    /**
+     * @return a list reading its reviews from {@code source} when used
+     */
+    List<Review> lazyList(Supplier<List<Review>> source) {
+        return new LazyReviews(source);
+    }
+
+    /**
+     * How far a growing review list reaches now, to copy it up to that
+     * point later with {@link #copyOf(List, int)}. A lazy list is not read.
+     */
+    static int mark(List<Review> reviews) {
+        return reviews instanceof LazyReviews ? ((LazyReviews) reviews).addedSize() : reviews.size();
+    }
+
+    /**
+     * Copy of a review list as it was at the given mark, however much it
+     * grew since. A lazy list that is not loaded is not read now, the copy
+     * reads its source each time it is used and keeps nothing.
+     */
+    static List<Review> copyOf(List<Review> reviews, int mark) {
+        return reviews instanceof LazyReviews ? ((LazyReviews) reviews).copy(mark)
+                : new ArrayList<>(reviews.subList(0, mark));
+    }
+
+    /*
+     * Forgets every list, for when the whole store is replaced.
+     */
+    synchronized void clear() {
+        clock.clear();
+        cachedReviews = 0;
+        addedReviews.reset();
+        overCapacity = false;
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized long getCachedReviews() {
+        return cachedReviews;
+    }
+
+    @Override
+    public long getAddedReviews() {
+        return addedReviews.sum();
+    }
+
+    @Override
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Clears the load and eviction counts, the sizes are current state.
+     */
+    @Override
+    public synchronized void reset() {
+        loads = 0;
+        evictions = 0;
+    }
+
+    /*
+     * Never called while holding a list's monitor, evicting takes the
+     * monitors of other lists.
+     */
+    private synchronized void loaded(LazyReviews list, int size) {
+        loads++;
+        clock.addLast(list);
+        cachedReviews += size;
+        long added = addedReviews.sum();
+        for (int scans = 2 * clock.size(); cachedReviews + added > capacity && scans > 0; scans--) {
+            LazyReviews eldest = clock.pollFirst();
+            if (eldest == list) {
+                clock.addLast(eldest);
+            } else if (eldest.referenced) {
+                eldest.referenced = false;
+                clock.addLast(eldest);
+            } else {
+                cachedReviews -= eldest.evict();
+                evictions++;
+            }
+        }
+        if (added > capacity && !overCapacity) {
+            logger.log(Level.WARNING, "{0} added reviews exceed the review cache size of {1}",
+                    new Object[]{added, capacity});
+        }
+        overCapacity = added > capacity;
+    }
+
+    /**
+     * Reviews of one product: the ones read from the source, dropped when
+     * evicted and read again when used, followed by the ones added since.
+     */
+    class LazyReviews extends AbstractList<Review> implements RandomAccess {
+
+        private final Supplier<List<Review>> source;
+        private List<Review> loaded;
+        private final List<Review> added = new ArrayList<>(0);
+        private volatile boolean referenced;
+
+        private LazyReviews(Supplier<List<Review>> source) {
+            this.source = source;
+        }
+
+        private List<Review> read() {
+            List<Review> current;
+            boolean fresh = false;
+            synchronized (this) {
+                referenced = true;
+                if (loaded == null) {
+                    loaded = new ArrayList<>(source.get());
+                    fresh = true;
+                }
+                current = loaded;
+            }
+            if (fresh) {
+                ReviewCache.this.loaded(this, current.size());
+            }
+            return current;
+        }
+
+        private synchronized int evict() {
+            int size = loaded == null ? 0 : loaded.size();
+            loaded = null;
+            return size;
+        }
+
+        private synchronized int addedSize() {
+            return added.size();
+        }
+
+        private List<Review> copy(int addedMark) {
+            List<Review> addedCopy;
+            List<Review> current;
+            synchronized (this) {
+                addedCopy = new ArrayList<>(added.subList(0, addedMark));
+                current = loaded;
+            }
+            if (current != null) {
+                List<Review> copy = new ArrayList<>(current.size() + addedCopy.size());
+                copy.addAll(current);
+                copy.addAll(addedCopy);
+                return copy;
+            }
+            return new SourceReviews(source, addedCopy);
+        }
+
+        @Override
+        public Review get(int index) {
+            List<Review> current = read();
+            synchronized (this) {
+                return index < current.size() ? current.get(index) : added.get(index - current.size());
+            }
+        }
+
+        @Override
+        public int size() {
+            List<Review> current = read();
+            synchronized (this) {
+                return current.size() + added.size();
+            }
+        }
+
+        @Override
+        public boolean add(Review review) {
+            synchronized (this) {
+                added.add(review);
+            }
+            addedReviews.increment();
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public Iterator<Review> iterator() {
+            return snapshot().iterator();
+        }
+
+        @Override
+        public Object[] toArray() {
+            return snapshot().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] array) {
+            return snapshot().toArray(array);
+        }
+
+        private List<Review> snapshot() {
+            List<Review> current = read();
+            synchronized (this) {
+                if (added.isEmpty()) {
+                    return current;
+                }
+                List<Review> all = new ArrayList<>(current.size() + added.size());
+                all.addAll(current);
+                all.addAll(added);
+                return all;
+            }
+        }
+    }
+
+    /*
+     * Read-only view that reads its source on every use and keeps nothing,
+     * for passes over all products such as writing a snapshot.
+     */
+    private static class SourceReviews extends AbstractList<Review> {
+
+        private final Supplier<List<Review>> source;
+        private final List<Review> added;
+
+        private SourceReviews(Supplier<List<Review>> source, List<Review> added) {
+            this.source = source;
+            this.added = added;
+        }
+
+        private List<Review> all() {
+            List<Review> all = new ArrayList<>(source.get());
+            all.addAll(added);
+            return all;
+        }
+
+        @Override
+        public Review get(int index) {
+            return all().get(index);
+        }
+
+        @Override
+        public int size() {
+            return all().size();
+        }
+
+        @Override
+        public Iterator<Review> iterator() {
+            return all().iterator();
+        }
+
+        @Override
+        public Object[] toArray() {
+            return all().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] array) {
+            return all().toArray(array);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Off-heap columnar storage for reviews.
+ * <p>
+ * Each review is one row: a rating byte, and the offset and length of its
+ * UTF-8 comment in a separate text area. Rows and text live in direct
+ * buffers outside the Java heap, in chunks of up to 64 MB so that neither
+ * is limited to the 2 GB of a single buffer; text offsets are longs. The
+ * only heap cost per review is the row number kept by the
+ * {@link ReviewList} of its product. {@link Review} objects are only
+ * created when a review is read.
+ * <p>
+ * Short comments are dictionary encoded: the first {@code dictionarySize}
+ * distinct ones are written once and shared by every row that repeats
+ * them, the way "Good value" or "Fine" keep coming back in reviews.
+ * <p>
+ * Rows are never removed, storage is released when the whole store is
+ * dropped. Appends are synchronized; reads never move the shared buffer
+ * positions and are safe alongside appends to other lists.
+ *
+ * @author Marti
+ */
+class ReviewColumns {
+
+    private static final int ROW_SIZE = Byte.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int RATING = 0;
+    private static final int OFFSET = 1;
+    private static final int LENGTH = 9;
+
+    private static final int CHUNK_BITS = 26;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int ROWS_PER_CHUNK = CHUNK_SIZE / ROW_SIZE;
+    private static final int FIRST_CHUNK_SIZE = 64 * 1024;
+    // longer comments are rarely repeated word for word
+    private static final int DICTIONARY_LENGTH = 64;
+
+    private volatile ByteBuffer[] rows = {ByteBuffer.allocateDirect(FIRST_CHUNK_SIZE)};
+    private volatile ByteBuffer[] text = {ByteBuffer.allocateDirect(FIRST_CHUNK_SIZE)};
+    private int rowCount;
+    private long textSize;
+    private final Map<String, Long> dictionary = new HashMap<>();
+    private final int dictionarySize;
+    private long sharedBytes;
+
+    ReviewColumns(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+    }
+
+    ReviewList newList() {
+        return new ReviewList();
+    }
+
+    ReviewList newList(Collection<Review> reviews) {
+        ReviewList list = new ReviewList();
+        list.addAll(reviews);
+        return list;
+    }
+
+    /**
+     * @return whether the list already stores its reviews here
+     */
+    boolean holds(List<Review> reviews) {
+        return reviews instanceof ReviewList && ((ReviewList) reviews).columns() == this;
+    }
+
+    synchronized int rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the bytes reserved outside the heap
+     */
+    synchronized long offHeapBytes() {
+        long bytes = 0;
+        for (ByteBuffer chunk : rows) {
+            bytes += chunk.capacity();
+        }
+        for (ByteBuffer chunk : text) {
+            bytes += chunk.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the comment bytes not written again thanks to the dictionary
+     */
+    synchronized long sharedBytes() {
+        return sharedBytes;
+    }
+
+    synchronized int dictionaryEntries() {
+        return dictionary.size();
+    }
+
+    /*
+     * Appends all the reviews or none: sizes are checked before anything
+     * is written, so a failure leaves the caller's list and stats as they
+     * were.
+     */
+    private synchronized int[] append(Collection<? extends Review> reviews) {
+        if (rowCount + (long) reviews.size() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Review store is full");
+        }
+        byte[][] comments = new byte[reviews.size()][];
+        int i = 0;
+        for (Review review : reviews) {
+            comments[i] = review.getComments().getBytes(StandardCharsets.UTF_8);
+            if (comments[i].length > CHUNK_SIZE) {
+                throw new IllegalArgumentException("Review comments longer than " + CHUNK_SIZE + " bytes");
+            }
+            i++;
+        }
+
+        int[] added = new int[comments.length];
+        i = 0;
+        for (Review review : reviews) {
+            added[i] = append(review.getRating(), review.getComments(), comments[i]);
+            i++;
+        }
+        return added;
+    }
+
+    private int append(Rating rating, String comments, byte[] bytes) {
+        Long offset = bytes.length <= DICTIONARY_LENGTH ? dictionary.get(comments) : null;
+        if (offset != null) {
+            sharedBytes += bytes.length;
+        } else {
+            offset = appendText(bytes);
+            if (bytes.length <= DICTIONARY_LENGTH && dictionary.size() < dictionarySize) {
+                dictionary.put(comments, offset);
+            }
+        }
+
+        int row = rowCount;
+        int chunk = row / ROWS_PER_CHUNK;
+        int base = row % ROWS_PER_CHUNK * ROW_SIZE;
+        rows = ensure(rows, chunk, base + ROW_SIZE);
+        ByteBuffer target = rows[chunk];
+        target.put(base + RATING, (byte) rating.ordinal());
+        target.putLong(base + OFFSET, offset);
+        target.putInt(base + LENGTH, bytes.length);
+        rowCount++;
+        return row;
+    }
+
+    /*
+     * A comment never spans two chunks; if it does not fit in what is left
+     * of the current one it starts the next.
+     */
+    private long appendText(byte[] bytes) {
+        int chunk = (int) (textSize >>> CHUNK_BITS);
+        int position = (int) (textSize & (CHUNK_SIZE - 1));
+        if (position + bytes.length > CHUNK_SIZE) {
+            chunk++;
+            position = 0;
+        }
+        text = ensure(text, chunk, position + bytes.length);
+        ByteBuffer target = text[chunk].duplicate();
+        target.position(position);
+        target.put(bytes);
+        long offset = ((long) chunk << CHUNK_BITS) + position;
+        textSize = offset + bytes.length;
+        return offset;
+    }
+
+    private Review read(int row) {
+        ByteBuffer rowData = rows[row / ROWS_PER_CHUNK];
+        int base = row % ROWS_PER_CHUNK * ROW_SIZE;
+        long offset = rowData.getLong(base + OFFSET);
+        byte[] comments = new byte[rowData.getInt(base + LENGTH)];
+        ByteBuffer source = text[(int) (offset >>> CHUNK_BITS)].duplicate();
+        source.position((int) (offset & (CHUNK_SIZE - 1)));
+        source.get(comments);
+        return new Review(Rating.values()[rowData.get(base + RATING)],
+                new String(comments, StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Returns chunks where the given one holds at least size bytes: the
+     * chunk doubles up to CHUNK_SIZE, a new chunk starts small. Readers
+     * keep using the array they read; it is never changed once published.
+     */
+    private static ByteBuffer[] ensure(ByteBuffer[] chunks, int index, int size) {
+        if (index < chunks.length && size <= chunks[index].capacity()) {
+            return chunks;
+        }
+        ByteBuffer[] larger = Arrays.copyOf(chunks, Math.max(chunks.length, index + 1));
+        ByteBuffer chunk = larger[index];
+        int capacity = chunk == null ? FIRST_CHUNK_SIZE : chunk.capacity();
+        while (capacity < size) {
+            capacity = Math.min(capacity * 2, CHUNK_SIZE);
+        }
+        ByteBuffer replacement = ByteBuffer.allocateDirect(capacity);
+        if (chunk != null) {
+            ByteBuffer source = chunk.duplicate();
+            source.clear();
+            replacement.put(source);
+            replacement.clear();
+        }
+        larger[index] = replacement;
+        return larger;
+    }
+
+    /**
+     * Reviews of one product, as row numbers into the store. Supports
+     * reading and appending; it is written under the product's lock like
+     * the heap lists it replaces.
+     */
+    class ReviewList extends AbstractList<Review> implements RandomAccess {
+
+        private int[] rowNumbers = new int[4];
+        private int size;
+
+        @Override
+        public Review get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return read(rowNumbers[index]);
+        }
+
+        @Override
+        public boolean add(Review review) {
+            return addAll(List.of(review));
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Review> reviews) {
+            int[] added = append(reviews);
+            if (size + added.length > rowNumbers.length) {
+                rowNumbers = Arrays.copyOf(rowNumbers, Math.max(size * 2, size + added.length));
+            }
+            System.arraycopy(added, 0, rowNumbers, size, added.length);
+            size += added.length;
+            modCount++;
+            return added.length > 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private ReviewColumns columns() {
+            return ReviewColumns.this;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only write-ahead log of product creations and reviews.
+ * <p>
+ * Every record gets a sequence number and is queued for a single writer
+ * thread, which drains whatever has accumulated, writes it and forces the
+ * segment to disk once for the whole batch (group commit). Callers wait on
+ * the returned future to know their record is durable. Segments are named
+ * after the first sequence they hold and are rotated once they exceed the
+ * configured size. Each record is framed as length, CRC32 and payload, so
+ * a torn write at the end of a segment is detected and skipped on replay.
+ * A failed write is cut off and the writer moves on to a new segment, so
+ * nothing acknowledged later ever follows a broken record.
+ *
+ * @author Marti
+ */
+class ReviewLog implements AutoCloseable {
+
+    /**
+     * Receives the records of the log during replay.
+     */
+    interface Handler {
+
+        void product(Product product);
+
+        void review(int id, Rating rating, String comments);
+
+        /**
+         * A review that {@link DataWatcher} read from a review file in the
+         * data folder, which still holds it.
+         */
+        default void fileReview(int id, Rating rating, String comments) {
+            review(id, rating, comments);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(ReviewLog.class.getName());
+
+    private static final byte PRODUCT = 1;
+    private static final byte REVIEW = 2;
+    private static final byte FILE_REVIEW = 3;
+    private static final byte DRINK = 0;
+    private static final byte FOOD = 1;
+
+    private static final int MAX_BATCH = 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static class Entry {
+
+        private final long sequence;
+        private final byte[] payload;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private Entry(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private final Path folder;
+    private final long segmentSize;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+
+    private long sequence;
+    // completes once every record queued so far is written, or failed to be
+    private CompletableFuture<Void> lastDurable = CompletableFuture.completedFuture(null);
+    private FileChannel segment;
+    private long segmentBytes;
+    private Thread writer;
+    private volatile boolean closed;
+
+    ReviewLog(Path folder, long segmentSize) throws IOException {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(folder);
+    }
+
+    /**
+     * Feeds every intact record with a sequence greater than {@code after}
+     * to the handler, oldest first.
+     *
+     * @return the last sequence found in the log, or {@code after} if the
+     * log holds nothing newer
+     */
+    long replay(long after, Handler handler) throws IOException {
+        long last = after;
+        for (Path file : segments()) {
+            ByteBuffer in;
+            try {
+                in = ByteBuffer.wrap(Files.readAllBytes(file));
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Skipped unreadable review log segment " + file, ex);
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= 2 * Integer.BYTES) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    logger.log(Level.WARNING, "Truncated record in {0}", file);
+                    break;
+                }
+                crc.reset();
+                crc.update(in.array(), in.position(), length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.log(Level.WARNING, "Corrupt record in {0}", file);
+                    break;
+                }
+                ByteBuffer record = in.slice();
+                record.limit(length);
+                in.position(in.position() + length);
+
+                long recordSequence = record.getLong();
+                if (recordSequence > after) {
+                    decode(record, handler);
+                }
+                last = Math.max(last, recordSequence);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Opens a fresh segment and starts the writer thread. Sequences continue
+     * from {@code lastSequence}.
+     */
+    synchronized void start(long lastSequence) throws IOException {
+        sequence = lastSequence;
+        openSegment(lastSequence + 1);
+        writer = new Thread(this::writeLoop, "review-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    synchronized long lastSequence() {
+        return sequence;
+    }
+
+    CompletableFuture<Void> appendProduct(Product product) {
+        return append(PRODUCT, out -> {
+            out.writeByte(product instanceof Food ? FOOD : DRINK);
+            out.writeInt(product.getId());
+            writeString(out, product.getName());
+            out.writeLong(product.getPrice().unscaledValue().longValueExact());
+            out.writeByte(product.getPrice().scale());
+            out.writeByte(product.getRating().ordinal());
+            out.writeLong(product instanceof Food ? product.getBestBefore().toEpochDay() : 0);
+        });
+    }
+
+    CompletableFuture<Void> appendReview(int id, Rating rating, String comments) {
+        return appendReview(id, rating, comments, false);
+    }
+
+    /**
+     * @param fromFile true for a review read from a review file, see
+     * {@link Handler#fileReview(int, Rating, String)}
+     */
+    CompletableFuture<Void> appendReview(int id, Rating rating, String comments, boolean fromFile) {
+        return append(fromFile ? FILE_REVIEW : REVIEW, out -> {
+            out.writeInt(id);
+            out.writeByte(rating.ordinal());
+            writeString(out, comments);
+        });
+    }
+
+    private interface Body {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private synchronized CompletableFuture<Void> append(byte type, Body body) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Review log is closed"));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try ( DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(++sequence);
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException ex) {
+            // only thrown by the underlying stream, a byte array never fails
+            throw new IllegalStateException(ex);
+        }
+        Entry entry = new Entry(sequence, bytes.toByteArray());
+        queue.add(entry);
+        lastDurable = entry.durable;
+        return entry.durable;
+    }
+
+    /**
+     * Completes once the records appended so far are written, so that a
+     * replay sees all of them. The writer handles records in sequence
+     * order, so waiting for the last one is enough; it completes
+     * exceptionally if that record could not be written.
+     */
+    synchronized CompletableFuture<Void> flush() {
+        return lastDurable;
+    }
+
+    /**
+     * Deletes the sealed segments whose records are all covered by a
+     * snapshot taken at {@code snapshotSequence}.
+     */
+    void compact(long snapshotSequence) throws IOException {
+        List<Path> files = segments();
+        // the last segment is the one being written
+        for (int i = 0; i < files.size() - 1; i++) {
+            if (firstSequence(files.get(i + 1)) - 1 <= snapshotSequence) {
+                Files.deleteIfExists(files.get(i));
+            }
+        }
+    }
+
+    boolean hasSealedSegments() throws IOException {
+        return segments().size() > 1;
+    }
+
+    /**
+     * Stops taking records and waits for the queued ones to be written.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+                batch.forEach(entry -> entry.durable.complete(null));
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Error writing review log " + ex.getMessage(), ex);
+                batch.forEach(entry -> entry.durable.completeExceptionally(ex));
+            } catch (InterruptedException ex) {
+                closed = true;
+            }
+            batch.clear();
+        }
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error closing review log " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) throws IOException {
+        if (segment == null) {
+            openSegment(batch.get(0).sequence);
+        }
+        int size = batch.stream().mapToInt(entry -> 2 * Integer.BYTES + entry.payload.length).sum();
+        ByteBuffer out = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (Entry entry : batch) {
+            crc.reset();
+            crc.update(entry.payload);
+            out.putInt(entry.payload.length).putInt((int) crc.getValue()).put(entry.payload);
+        }
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                segment.write(out);
+            }
+            segment.force(false);
+        } catch (IOException ex) {
+            abandonSegment();
+            throw ex;
+        }
+        segmentBytes += size;
+        if (segmentBytes >= segmentSize) {
+            segment.close();
+            segment = null;
+            openSegment(batch.get(batch.size() - 1).sequence + 1);
+        }
+    }
+
+    /*
+     * Replay stops at the first broken record of a segment, so the partial
+     * batch is cut off and the next batch starts a new segment.
+     */
+    private void abandonSegment() {
+        try {
+            segment.truncate(segmentBytes);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error truncating review log " + ex.getMessage(), ex);
+        }
+        try {
+            segment.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing review log " + ex.getMessage(), ex);
+        }
+        segment = null;
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        Path file = folder.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        segment = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = segment.size();
+    }
+
+    private List<Path> segments() throws IOException {
+        try ( Stream<Path> list = Files.list(folder)) {
+            return list.filter(file -> file.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSequence(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void decode(ByteBuffer in, Handler handler) {
+        Rating[] ratings = Rating.values();
+        switch (in.get()) {
+            case PRODUCT:
+                byte type = in.get();
+                int id = in.getInt();
+                String name = readString(in);
+                BigDecimal price = BigDecimal.valueOf(in.getLong(), in.get());
+                Rating rating = ratings[in.get()];
+                long bestBefore = in.getLong();
+                handler.product(type == FOOD
+                        ? new Food(id, name, price, rating, LocalDate.ofEpochDay(bestBefore))
+                        : new Drink(id, name, price, rating));
+                break;
+            case REVIEW:
+                handler.review(in.getInt(), ratings[in.get()], readString(in));
+                break;
+            case FILE_REVIEW:
+                handler.fileReview(in.getInt(), ratings[in.get()], readString(in));
+                break;
+            default:
+                logger.log(Level.WARNING, "Unknown review log record type");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
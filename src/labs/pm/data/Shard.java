@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * One partition of a {@link ShardedProductManager}, either a product
+ * manager in this process or one reached over a socket. Methods that look
+ * a product up return {@code null} when the shard does not have it;
+ * {@link IOException} reports a shard that could not be reached.
+ *
+ * @author Marti
+ */
+interface Shard extends Closeable {
+
+    boolean addProduct(Product product) throws IOException;
+
+    Product findProduct(int id) throws IOException;
+
+    Product reviewProduct(int id, Rating rating, String comments) throws IOException;
+
+    int reviewProducts(Map<Integer, ? extends Collection<Review>> batch) throws IOException;
+
+    List<Review> getReviews(int id, int offset, int limit) throws IOException;
+
+    List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit) throws IOException;
+
+    /**
+     * @see ProductManager#getDiscountTotals()
+     */
+    long[] getDiscountTotals() throws IOException;
+
+    void printProductReport(int id, String lenguageTag, String client) throws IOException;
+
+    void dumpData() throws IOException;
+
+    void restoreData() throws IOException;
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Messages between a {@link RemoteShard} and a {@link ShardServer}. Every
+ * request is an operation code followed by its arguments; every response
+ * starts with {@link #OK} and the result, or {@link #ERROR} and a message.
+ * Values are written with {@link DataOutputStream}, strings as a length
+ * and their UTF-8 bytes.
+ * <p>
+ * Each message travels as one frame: its length, then its bytes. A
+ * message is built in memory and a frame is read in full before it is
+ * parsed, so a request that fails still gets a whole reply and the
+ * connection stays usable. A connection that breaks in the middle of a
+ * frame can no longer be framed and is closed.
+ *
+ * @author Marti
+ */
+final class ShardProtocol {
+
+    static final byte ADD_PRODUCT = 1;
+    static final byte FIND_PRODUCT = 2;
+    static final byte REVIEW_PRODUCT = 3;
+    static final byte REVIEW_PRODUCTS = 4;
+    static final byte GET_REVIEWS = 5;
+    static final byte LIST_PRODUCTS = 6;
+    static final byte DISCOUNT_TOTALS = 7;
+    static final byte PRINT_REPORT = 8;
+    static final byte DUMP_DATA = 9;
+    static final byte RESTORE_DATA = 10;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    // LIST_PRODUCTS orders
+    static final byte UNSORTED = 0;
+    static final byte BY_RATING = 1;
+    static final byte BY_PRICE = 2;
+
+    private static final byte FOOD = 'F';
+    private static final byte DRINK = 'D';
+
+    // a listing of a million products is a few tens of MB
+    private static final int MAX_FRAME = 512 * 1024 * 1024;
+
+    private ShardProtocol() {
+    }
+
+    /**
+     * Message written in memory and sent as one frame.
+     */
+    static final class Message extends DataOutputStream {
+
+        Message() {
+            super(new ByteArrayOutputStream());
+        }
+
+        Message(byte code) throws IOException {
+            this();
+            writeByte(code);
+        }
+
+        void send(DataOutputStream channel) throws IOException {
+            ByteArrayOutputStream bytes = (ByteArrayOutputStream) out;
+            channel.writeInt(bytes.size());
+            bytes.writeTo(channel);
+            channel.flush();
+        }
+    }
+
+    /**
+     * Reads one whole frame, for the message to be parsed from memory.
+     */
+    static DataInputStream receive(DataInputStream channel) throws IOException {
+        int length = channel.readInt();
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        channel.readFully(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        // a frame is all in memory, anything longer than the rest is corrupt
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * A missing product is written as a lone false, so lookups can answer
+     * "not here" without a separate status.
+     */
+    static void writeProduct(DataOutputStream out, Product product) throws IOException {
+        out.writeBoolean(product != null);
+        if (product == null) {
+            return;
+        }
+        out.writeByte(product instanceof Food ? FOOD : DRINK);
+        out.writeInt(product.getId());
+        writeString(out, product.getName());
+        writeString(out, product.getPrice().toString());
+        out.writeByte(product.getRating().ordinal());
+        out.writeLong(product instanceof Food ? product.getBestBefore().toEpochDay() : 0);
+    }
+
+    static Product readProduct(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte type = in.readByte();
+        int id = in.readInt();
+        String name = readString(in);
+        BigDecimal price = new BigDecimal(readString(in));
+        Rating rating = Rating.values()[in.readByte()];
+        long bestBefore = in.readLong();
+        return type == FOOD
+                ? new Food(id, name, price, rating, LocalDate.ofEpochDay(bestBefore))
+                : new Drink(id, name, price, rating);
+    }
+
+    static void writeReview(DataOutputStream out, Review review) throws IOException {
+        out.writeByte(review.getRating().ordinal());
+        writeString(out, review.getComments());
+    }
+
+    static Review readReview(DataInputStream in) throws IOException {
+        Rating rating = Rating.values()[in.readByte()];
+        return new Review(rating, readString(in));
+    }
+}
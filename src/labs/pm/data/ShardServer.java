@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static labs.pm.data.ShardProtocol.*;
+
+/**
+ * Serves one shard to {@link RemoteShard} clients on a loopback socket,
+ * one thread per connection. This is a stand-in for running shards in
+ * separate processes; there is no authentication and it only listens on
+ * the local host.
+ * <p>
+ * {@code java labs.pm.data.ShardServer <shard> <shards> <port>} loads shard
+ * {@code shard} of {@code shards} and serves it on {@code port}.
+ *
+ * @author Marti
+ */
+public class ShardServer implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ShardServer.class.getName());
+
+    private final LocalShard shard;
+    private final ServerSocket server;
+    private final ExecutorService connections = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "shard-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ShardServer(LocalShard shard, int port) throws IOException {
+        this.shard = shard;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "shard-server-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static ShardServer start(int shard, int shards, int port) throws IOException {
+        return new ShardServer(new LocalShard(ShardedProductManager.newShard(shard, shards)), port);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+        // the served manager's review log and background threads
+        shard.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            }
+        } catch (IOException ex) {
+            if (!server.isClosed()) {
+                logger.log(Level.SEVERE, "Error accepting shard connections " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try ( socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                DataInputStream request;
+                try {
+                    request = receive(in);
+                } catch (EOFException ex) {
+                    // the client is gone, or went in the middle of a frame
+                    return;
+                }
+                Message reply = new Message();
+                try {
+                    handle(request, reply);
+                } catch (RuntimeException | IOException ex) {
+                    logger.log(Level.WARNING, "Error serving shard request " + ex.toString(), ex);
+                    // whatever the failed request had written is dropped
+                    reply = new Message(ERROR);
+                    writeString(reply, ex.toString());
+                }
+                reply.send(out);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Shard connection closed " + ex.getMessage());
+        }
+    }
+
+    /*
+     * The request frame is already in memory and the reply is only sent
+     * once complete, so a request that fails, even one that cannot be
+     * parsed, is answered with an error and the next frame is read as
+     * usual.
+     */
+    private void handle(DataInputStream in, Message out) throws IOException {
+        byte operation = in.readByte();
+        switch (operation) {
+            case ADD_PRODUCT: {
+                Product product = readProduct(in);
+                boolean added = shard.addProduct(product);
+                out.writeByte(OK);
+                out.writeBoolean(added);
+                break;
+            }
+            case FIND_PRODUCT: {
+                int id = in.readInt();
+                out.writeByte(OK);
+                writeProduct(out, shard.findProduct(id));
+                break;
+            }
+            case REVIEW_PRODUCT: {
+                int id = in.readInt();
+                Review review = readReview(in);
+                Product product = shard.reviewProduct(id, review.getRating(), review.getComments());
+                out.writeByte(OK);
+                writeProduct(out, product);
+                break;
+            }
+            case REVIEW_PRODUCTS: {
+                int groups = in.readInt();
+                Map<Integer, List<Review>> batch = new HashMap<>(groups * 4 / 3 + 1);
+                for (int i = 0; i < groups; i++) {
+                    int id = in.readInt();
+                    int count = in.readInt();
+                    List<Review> reviews = new ArrayList<>(count);
+                    for (int j = 0; j < count; j++) {
+                        reviews.add(readReview(in));
+                    }
+                    batch.put(id, reviews);
+                }
+                int added = shard.reviewProducts(batch);
+                out.writeByte(OK);
+                out.writeInt(added);
+                break;
+            }
+            case GET_REVIEWS: {
+                int id = in.readInt();
+                int offset = in.readInt();
+                int limit = in.readInt();
+                List<Review> reviews = shard.getReviews(id, offset, limit);
+                out.writeByte(OK);
+                out.writeInt(reviews == null ? -1 : reviews.size());
+                if (reviews != null) {
+                    for (Review review : reviews) {
+                        writeReview(out, review);
+                    }
+                }
+                break;
+            }
+            case LIST_PRODUCTS: {
+                byte order = in.readByte();
+                int limit = in.readInt();
+                List<Product> products = shard.findProducts(p -> true,
+                        order == ShardProtocol.BY_RATING ? ProductManager.BY_RATING
+                        : order == ShardProtocol.BY_PRICE ? ProductManager.BY_PRICE
+                        : (p1, p2) -> 0, limit);
+                out.writeByte(OK);
+                out.writeInt(products.size());
+                for (Product product : products) {
+                    writeProduct(out, product);
+                }
+                break;
+            }
+            case DISCOUNT_TOTALS: {
+                long[] totals = shard.getDiscountTotals();
+                out.writeByte(OK);
+                out.writeInt(totals.length);
+                for (long total : totals) {
+                    out.writeLong(total);
+                }
+                break;
+            }
+            case PRINT_REPORT: {
+                int id = in.readInt();
+                String lenguageTag = readString(in);
+                String client = readString(in);
+                shard.printProductReport(id, lenguageTag, client);
+                out.writeByte(OK);
+                break;
+            }
+            case DUMP_DATA:
+                shard.dumpData();
+                out.writeByte(OK);
+                break;
+            case RESTORE_DATA:
+                shard.restoreData();
+                out.writeByte(OK);
+                break;
+            default:
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ShardServer server = start(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        logger.log(Level.INFO, "Serving shard {0} of {1} on port {2}",
+                new Object[]{args[0], args[1], server.getPort()});
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Product manager split into shards by product id.
+ * <p>
+ * Every shard is an independent store with its own locks, snapshot and
+ * review log, kept under {@code temp.folder/shard-<n>}. Calls about one
+ * product go to the shard that owns its id; listings and discount totals
+ * are asked of all shards in parallel and merged. Shards either live in
+ * this process or are reached through {@link ShardServer}s on the local
+ * host. A shard that fails makes cross-shard calls throw
+ * {@link UncheckedIOException} rather than return partial results.
+ *
+ * @author Marti
+ */
+public class ShardedProductManager implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ShardedProductManager.class.getName());
+
+    private final List<Shard> shards;
+    private final ExecutorService scatter;
+
+    /**
+     * Loads {@code count} shards in this process, each from the products of
+     * the data folder that it owns.
+     */
+    public ShardedProductManager(int count) {
+        this(ResourceBundle.getBundle("labs.pm.data.config"), count);
+    }
+
+    /*
+     * Shards of another configuration than the application's, see
+     * newShard.
+     */
+    ShardedProductManager(ResourceBundle config, int count) {
+        this(localShards(config, count));
+    }
+
+    private ShardedProductManager(List<Shard> shards) {
+        this.shards = shards;
+        this.scatter = Executors.newFixedThreadPool(shards.size(), task -> {
+            Thread thread = new Thread(task, "shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Connects to shards served by {@link ShardServer}; shard {@code n} of
+     * the list must be serving shard {@code n} of {@code addresses.size()}.
+     */
+    public static ShardedProductManager connect(List<InetSocketAddress> addresses) throws IOException {
+        List<Shard> shards = new ArrayList<>(addresses.size());
+        try {
+            for (InetSocketAddress address : addresses) {
+                shards.add(new RemoteShard(address));
+            }
+        } catch (IOException ex) {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+            throw ex;
+        }
+        return new ShardedProductManager(shards);
+    }
+
+    private static List<Shard> localShards(ResourceBundle config, int count) {
+        List<Shard> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new LocalShard(newShard(config, i, count)));
+        }
+        return shards;
+    }
+
+    static int shardOf(int id, int count) {
+        return Math.floorMod(id ^ (id >>> 16), count);
+    }
+
+    /*
+     * Same configuration as the single instance, but with a temp folder of
+     * its own so that snapshots and review logs of shards stay apart.
+     */
+    static ProductManager newShard(int shard, int count) {
+        return newShard(ResourceBundle.getBundle("labs.pm.data.config"), shard, count);
+    }
+
+    static ProductManager newShard(ResourceBundle base, int shard, int count) {
+        Map<String, Object> overrides = new HashMap<>();
+        String tempFolder = base.getString("temp.folder") + "/shard-" + shard;
+        overrides.put("temp.folder", tempFolder);
+        if (base.containsKey("log.folder")) {
+            overrides.put("log.folder", base.getString("log.folder") + "/shard-" + shard);
+        }
+        return new ProductManager(new LayeredConfig(base, overrides), String.valueOf(shard),
+                id -> shardOf(id, count) == shard);
+    }
+
+    private Shard shard(int id) {
+        return shards.get(shardOf(id, shards.size()));
+    }
+
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        return addProduct(new Food(id, name, price, rating, bestBefore));
+    }
+
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
+        return addProduct(new Drink(id, name, price, rating));
+    }
+
+    private Product addProduct(Product product) {
+        try {
+            shard(product.getId()).addProduct(product);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error adding product " + ex.toString(), ex);
+        }
+        return product;
+    }
+
+    public Product reviewProduct(int id, Rating rating, String comments) {
+        try {
+            return shard(id).reviewProduct(id, rating, comments);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reviewing product " + ex.toString(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * @see ProductManager#reviewProducts(Map)
+     */
+    public int reviewProducts(Map<Integer, ? extends Collection<Review>> batch) {
+        List<Map<Integer, Collection<Review>>> split = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            split.add(new HashMap<>());
+        }
+        batch.forEach((id, reviews) -> split.get(shardOf(id, shards.size())).put(id, reviews));
+        int added = 0;
+        for (Integer count : gather(i -> split.get(i).isEmpty() ? 0 : shards.get(i).reviewProducts(split.get(i)))) {
+            added += count;
+        }
+        return added;
+    }
+
+    public Product findProduct(int id) throws ProductManagerException {
+        Product product = null;
+        try {
+            product = shard(id).findProduct(id);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error finding product " + ex.toString(), ex);
+        }
+        if (product == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return product;
+    }
+
+    public List<Review> getReviews(int id, int offset, int limit) throws ProductManagerException {
+        List<Review> reviews = null;
+        try {
+            reviews = shard(id).getReviews(id, offset, limit);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reading reviews " + ex.toString(), ex);
+        }
+        if (reviews == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return reviews;
+    }
+
+    public void printProductReport(int id, String lenguageTag, String client) {
+        try {
+            shard(id).printProductReport(id, lenguageTag, client);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error printing product report " + ex.toString(), ex);
+        }
+    }
+
+    /**
+     * Asks every shard for its best {@code limit} products and merges them.
+     */
+    public List<Product> findProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit) {
+        List<Product> merged = new ArrayList<>();
+        for (List<Product> part : gather(i -> shards.get(i).findProducts(filter, sorter, limit))) {
+            merged.addAll(part);
+        }
+        merged.sort(sorter);
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    public void printProducts(Comparator<Product> sorter, String lenguageTag) {
+        printProducts(ProductManager.ALL, sorter, Integer.MAX_VALUE, lenguageTag);
+    }
+
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit, String lenguageTag) {
+        // System.out is not ours to close, only flushed
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            printProducts(filter, sorter, limit, lenguageTag, out);
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error printing products " + ex.toString(), ex);
+        }
+    }
+
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, int limit,
+            String lenguageTag, Writer out) throws IOException {
+        ResourceFormatter formatter = ProductManager.formatter(lenguageTag);
+        for (Product product : findProducts(filter, sorter, limit)) {
+            formatter.appendProduct(out, product);
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    public Map<String, String> getDiscounts(String lenguageTag) {
+        long[] totals = null;
+        for (long[] part : gather(i -> shards.get(i).getDiscountTotals())) {
+            if (totals == null) {
+                totals = part.clone();
+            } else {
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] += part[i];
+                }
+            }
+        }
+        return ProductManager.formatDiscounts(totals, lenguageTag);
+    }
+
+    public void dumpData() {
+        gather(i -> {
+            shards.get(i).dumpData();
+            return null;
+        });
+    }
+
+    public void restoreData() {
+        gather(i -> {
+            shards.get(i).restoreData();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        scatter.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    private interface ShardCall<T> {
+
+        T call(int shard) throws IOException;
+    }
+
+    /*
+     * Runs the call on every shard at once and returns the results in
+     * shard order; the first failure is rethrown once all calls are done.
+     */
+    private <T> List<T> gather(ShardCall<T> call) {
+        List<CompletableFuture<T>> calls = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            calls.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call(shard);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, scatter));
+        }
+        try {
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException ex) {
+            logger.log(Level.SEVERE, "Error calling shards " + ex.getCause(), ex.getCause());
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+        List<T> results = new ArrayList<>(calls.size());
+        for (CompletableFuture<T> result : calls) {
+            results.add(result.join());
+        }
+        return results;
+    }
+}
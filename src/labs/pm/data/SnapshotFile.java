@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Versioned, columnar binary snapshot of the products and their reviews.
+ * <p>
+ * The file starts with a header (magic, version, the review log sequence
+ * the snapshot covers and the product and review counts) followed by fixed width columns: product ids, types,
+ * ratings, price unscaled values and scales, best before epoch days, name
+ * references and review counts, then review ratings and comment
+ * references. Names and comments live once each in a trailing string table
+ * of length prefixed UTF-8 values. Reviews are stored in product order.
+ * The file is forced to disk before {@code write} returns, and is at most
+ * {@link #MAX_SIZE} bytes: {@code write} fails rather than leave a file
+ * that {@code read} cannot map. Read with a
+ * {@link ReviewCache}, the reviews stay in the mapped file and each
+ * product's list reads its own rows when used.
+ *
+ * @author Marti
+ */
+class SnapshotFile {
+
+    static final int MAGIC = 0x504D534E;
+    static final short VERSION = 2;
+
+    private static final byte DRINK = 0;
+    private static final byte FOOD = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES + Long.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * Largest snapshot file, the reader maps the whole file in one buffer
+     * and addresses it with {@code int} offsets.
+     */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Point-in-time copy of the data, as read back from a snapshot file or
+     * captured from memory, together with the sequence of the last review
+     * log record it already contains.
+     */
+    static class Contents {
+
+        private final Map<Product, List<Review>> data;
+        private final long logSequence;
+
+        Contents(Map<Product, List<Review>> data, long logSequence) {
+            this.data = data;
+            this.logSequence = logSequence;
+        }
+
+        Map<Product, List<Review>> getData() {
+            return data;
+        }
+
+        long getLogSequence() {
+            return logSequence;
+        }
+    }
+
+    static void write(Path file, Map<Product, List<Review>> data, long logSequence) throws IOException {
+        int productCount = data.size();
+
+        List<Product> products = new ArrayList<>(data.keySet());
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        for (Product product : products) {
+            intern(product.getName(), strings, stringIds);
+        }
+
+        /*
+         * Each product's reviews are read once, into the review columns. A
+         * lazy list from the review cache reads its source on every use and
+         * keeps nothing.
+         */
+        int[] reviewCounts = new int[productCount];
+        ReviewTable reviews = new ReviewTable();
+        for (int i = 0; i < productCount; i++) {
+            int before = reviews.count;
+            for (Review review : data.get(products.get(i))) {
+                reviews.add((byte) review.getRating().ordinal(), intern(review.getComments(), strings, stringIds));
+            }
+            reviewCounts[i] = reviews.count - before;
+        }
+
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ColumnWriter out = new ColumnWriter(channel);
+
+            out.room(HEADER_SIZE).putInt(MAGIC).putShort(VERSION).putLong(logSequence)
+                    .putInt(productCount).putInt(reviews.count);
+
+            for (Product product : products) {
+                out.room(Integer.BYTES).putInt(product.getId());
+            }
+            for (Product product : products) {
+                out.room(Byte.BYTES).put(product instanceof Food ? FOOD : DRINK);
+            }
+            for (Product product : products) {
+                out.room(Byte.BYTES).put((byte) product.getRating().ordinal());
+            }
+            for (Product product : products) {
+                out.room(Long.BYTES).putLong(product.getPrice().unscaledValue().longValueExact());
+            }
+            for (Product product : products) {
+                out.room(Byte.BYTES).put((byte) product.getPrice().scale());
+            }
+            for (Product product : products) {
+                out.room(Long.BYTES).putLong(product instanceof Food
+                        ? product.getBestBefore().toEpochDay() : 0);
+            }
+            for (Product product : products) {
+                out.room(Integer.BYTES).putInt(stringIds.get(product.getName()));
+            }
+            for (int count : reviewCounts) {
+                out.room(Integer.BYTES).putInt(count);
+            }
+            for (int row = 0; row < reviews.count; row++) {
+                out.room(Byte.BYTES).put(reviews.ratings[row]);
+            }
+            for (int row = 0; row < reviews.count; row++) {
+                out.room(Integer.BYTES).putInt(reviews.comments[row]);
+            }
+
+            out.room(Integer.BYTES).putInt(strings.size());
+            for (String text : strings) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.room(Integer.BYTES).putInt(bytes.length);
+                out.put(bytes);
+            }
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces a folder to disk, so that a file just created or renamed in it
+     * survives a crash. File systems that cannot open a folder for reading,
+     * such as those on Windows, commit renames on their own and are skipped.
+     */
+    static void forceDirectory(Path folder) throws IOException {
+        try ( FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException ex) {
+            // not supported for folders on this platform
+        }
+    }
+
+    static Contents read(Path file) throws IOException {
+        return read(file, null, id -> true);
+    }
+
+    /**
+     * @param owns ids to keep; a shard skips the products of other shards
+     */
+    static Contents read(Path file, ReviewCache cache, IntPredicate owns) throws IOException {
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException("Snapshot of " + channel.size() + " bytes is over the "
+                        + MAX_SIZE + " bytes that can be mapped: " + file);
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a product snapshot: " + file);
+            }
+            short version = in.getShort();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            // version 1 snapshots predate the review log
+            long logSequence = version >= 2 ? in.getLong() : 0;
+            int productCount = in.getInt();
+            int reviewCount = in.getInt();
+
+            int[] ids = new int[productCount];
+            byte[] types = new byte[productCount];
+            byte[] ratings = new byte[productCount];
+            long[] unscaledPrices = new long[productCount];
+            byte[] scales = new byte[productCount];
+            long[] bestBefore = new long[productCount];
+            int[] names = new int[productCount];
+            int[] reviewCounts = new int[productCount];
+
+            in.asIntBuffer().get(ids);
+            in.position(in.position() + productCount * Integer.BYTES);
+            in.get(types);
+            in.get(ratings);
+            in.asLongBuffer().get(unscaledPrices);
+            in.position(in.position() + productCount * Long.BYTES);
+            in.get(scales);
+            in.asLongBuffer().get(bestBefore);
+            in.position(in.position() + productCount * Long.BYTES);
+            in.asIntBuffer().get(names);
+            in.position(in.position() + productCount * Integer.BYTES);
+            in.asIntBuffer().get(reviewCounts);
+            in.position(in.position() + productCount * Integer.BYTES);
+            Rows rows = new Rows(in, in.position(), in.position() + reviewCount);
+            in.position(in.position() + reviewCount + reviewCount * Integer.BYTES);
+
+            int[] stringOffsets = new int[in.getInt()];
+            for (int i = 0; i < stringOffsets.length; i++) {
+                stringOffsets[i] = in.position();
+                in.position(in.position() + Integer.BYTES + in.getInt(in.position()));
+            }
+            rows.stringOffsets = stringOffsets;
+            // shared instances for repeated comments when reading everything now
+            if (cache == null) {
+                rows.strings = new String[stringOffsets.length];
+            }
+
+            Rating[] values = Rating.values();
+            Map<Product, List<Review>> data = new HashMap<>(productCount * 4 / 3 + 1);
+            int review = 0;
+            for (int i = 0; i < productCount; i++) {
+                if (!owns.test(ids[i])) {
+                    review += reviewCounts[i];
+                    continue;
+                }
+                BigDecimal price = BigDecimal.valueOf(unscaledPrices[i], scales[i]);
+                String name = rows.string(names[i]);
+                Product product = types[i] == FOOD
+                        ? new Food(ids[i], name, price, values[ratings[i]], LocalDate.ofEpochDay(bestBefore[i]))
+                        : new Drink(ids[i], name, price, values[ratings[i]]);
+                int first = review;
+                int count = reviewCounts[i];
+                data.put(product, cache == null ? rows.reviews(first, count)
+                        : cache.lazyList(() -> rows.reviews(first, count)));
+                review += count;
+            }
+            return new Contents(data, logSequence);
+        }
+    }
+
+    /*
+     * Review rows and strings of a mapped snapshot. Reads never move the
+     * shared buffer, so lists of different products read concurrently.
+     */
+    private static class Rows {
+
+        private final ByteBuffer in;
+        private final int ratingsAt;
+        private final int commentsAt;
+        private int[] stringOffsets;
+        private String[] strings;
+
+        private Rows(ByteBuffer in, int ratingsAt, int commentsAt) {
+            this.in = in;
+            this.ratingsAt = ratingsAt;
+            this.commentsAt = commentsAt;
+        }
+
+        private List<Review> reviews(int first, int count) {
+            Rating[] values = Rating.values();
+            List<Review> reviews = new ArrayList<>(count);
+            for (int row = first; row < first + count; row++) {
+                reviews.add(new Review(values[in.get(ratingsAt + row)],
+                        string(in.getInt(commentsAt + row * Integer.BYTES))));
+            }
+            return reviews;
+        }
+
+        private String string(int index) {
+            if (strings != null && strings[index] != null) {
+                return strings[index];
+            }
+            ByteBuffer text = in.duplicate();
+            text.position(stringOffsets[index]);
+            byte[] bytes = new byte[text.getInt()];
+            text.get(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (strings != null) {
+                strings[index] = value;
+            }
+            return value;
+        }
+    }
+
+    /*
+     * Rating and comment reference columns of all reviews, in product order.
+     */
+    private static class ReviewTable {
+
+        private byte[] ratings = new byte[1024];
+        private int[] comments = new int[1024];
+        private int count;
+
+        private void add(byte rating, int comment) {
+            if (count == ratings.length) {
+                ratings = Arrays.copyOf(ratings, count * 2);
+                comments = Arrays.copyOf(comments, count * 2);
+            }
+            ratings[count] = rating;
+            comments[count] = comment;
+            count++;
+        }
+    }
+
+    private static int intern(String text, List<String> strings, Map<String, Integer> stringIds) {
+        return stringIds.computeIfAbsent(text, key -> {
+            strings.add(key);
+            return strings.size() - 1;
+        });
+    }
+
+    /*
+     * Fills a fixed size buffer and hands it to the channel whenever the
+     * next value would not fit.
+     */
+    private static class ColumnWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long written;
+
+        private ColumnWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private ByteBuffer room(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int length = Math.min(room(1).remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            if (written > MAX_SIZE) {
+                throw new IOException("Snapshot over " + MAX_SIZE + " bytes could not be read back");
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded string dictionary: equal strings are replaced by the first one
+ * seen, so thousands of products called "Tea" share one name. Once the
+ * dictionary holds {@code limit} strings, new ones are passed through
+ * unchanged rather than growing it without end.
+ *
+ * @author Marti
+ */
+class StringDictionary implements UnaryOperator<String> {
+
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+    private final int limit;
+
+    StringDictionary(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public String apply(String value) {
+        String known = strings.get(value);
+        if (known != null) {
+            return known;
+        }
+        if (strings.size() >= limit) {
+            return value;
+        }
+        known = strings.putIfAbsent(value, value);
+        return known != null ? known : value;
+    }
+
+    int size() {
+        return strings.size();
+    }
+}
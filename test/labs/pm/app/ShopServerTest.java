@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.app;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import labs.pm.data.ProductManager;
+import labs.pm.data.Rating;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests against a {@link ShopServer} on an ephemeral port, in front of
+ * the product manager of the test configuration.
+ *
+ * @author Marti
+ */
+public class ShopServerTest {
+
+    // clear of anything the test data folder may hold
+    private static final int TEA = 990101;
+    private static final int COFFEE = 990102;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private ShopServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        ProductManager pm = ProductManager.getInstance();
+        pm.createProduct(TEA, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.createProduct(COFFEE, "Coffee", new BigDecimal("2.99"), Rating.NOT_RATE);
+        server = new ShopServer(pm, 0, 2);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        return client.send(HttpRequest.newBuilder(uri(path)).GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> post(String path, String body) throws Exception {
+        return client.send(HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getPort() + path);
+    }
+
+    @Test
+    public void testReportAndReview() throws Exception {
+        HttpResponse<String> report = get("/products/" + TEA + "?lang=en-GB");
+        assertEquals(200, report.statusCode());
+        assertTrue(report.body().startsWith("Tea"));
+
+        HttpResponse<String> review = post("/products/" + TEA + "/reviews", "4,Nice hot cup of tea\n");
+        assertEquals(200, review.statusCode());
+        assertEquals("1", review.body());
+        assertTrue(get("/products/" + TEA).body().contains("Nice hot cup of tea"));
+
+        assertEquals(400, post("/products/" + TEA + "/reviews", "nine,Not a rating").statusCode());
+        assertEquals(404, post("/products/999999/reviews", "4,Unknown product").statusCode());
+    }
+
+    @Test
+    public void testListing() throws Exception {
+        HttpResponse<String> listing = get("/products?sort=price&limit=1000000");
+        assertEquals(200, listing.statusCode());
+        assertTrue(listing.body().indexOf("Tea") < listing.body().indexOf("Coffee"));
+        assertEquals(1, get("/products?sort=price&limit=1").body().split("\n").length);
+        assertEquals(200, get("/discounts").statusCode());
+    }
+
+    @Test
+    public void testBadRequests() throws Exception {
+        HttpResponse<String> limit = get("/products?limit=-1");
+        assertEquals(400, limit.statusCode());
+        assertEquals("Bad limit -1", limit.body());
+        assertEquals(400, get("/products?limit=many").statusCode());
+        assertEquals(400, get("/products/tea").statusCode());
+        assertEquals(404, get("/products/999999").statusCode());
+        assertEquals(404, get("/products/" + TEA + "/stock").statusCode());
+        assertEquals(404, post("/discounts", "").statusCode());
+    }
+}
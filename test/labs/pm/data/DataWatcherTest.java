@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.function.BooleanSupplier;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Product and review files dropped into the data folder of a running
+ * manager, and what a restart makes of them.
+ *
+ * @author Marti
+ */
+public class DataWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
+    private final Map<String, Object> overrides = new HashMap<>();
+    private Path data;
+
+    @Before
+    public void setUp() throws Exception {
+        data = folder.newFolder("data").toPath();
+        overrides.put("data.folder", data.toString());
+        overrides.put("temp.folder", folder.newFolder("temp").toString());
+        overrides.put("reports.folder", folder.newFolder("reports").toString());
+        overrides.put("store.concurrent", "true");
+        overrides.put("log.enabled", "true");
+        overrides.put("log.compaction.interval", "3600");
+        overrides.put("reviews.lazy", "false");
+        overrides.put("startup.async", "false");
+        overrides.put("data.watch", "true");
+        overrides.put("data.watch.batch.millis", "50");
+        overrides.put("metrics.enabled", "false");
+        overrides.put("render.cache.size", "0");
+
+        Files.writeString(data.resolve("product101.txt"), "D,101,Tea,1.99,0\n");
+        append(101, "4,Nice hot cup of tea\n");
+    }
+
+    private ProductManager newManager() {
+        return new ProductManager(new LayeredConfig(config, new HashMap<>(overrides)), "", id -> true);
+    }
+
+    private void append(int id, String lines) throws Exception {
+        Files.writeString(data.resolve(MessageFormat.format(config.getString("review.data.file"), id)),
+                lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("data folder change not applied", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static int reviews(ProductManager pm, int id) {
+        try {
+            return pm.hasProduct(id) ? pm.getRatingStats(id).getCount() : -1;
+        } catch (ProductManagerException ex) {
+            return -1;
+        }
+    }
+
+    @Test
+    public void testAppliesNewFiles() throws Exception {
+        ProductManager pm = newManager();
+        assertEquals(1, reviews(pm, 101));
+
+        append(101, "2,Too sweet\n5,partial");
+        await(() -> reviews(pm, 101) == 2);
+
+        // the review file may arrive before its product
+        append(102, "3,Fine\n");
+        Files.writeString(data.resolve("product102.txt"), "F,102,Cake,3.99,0,2030-01-01\n");
+        await(() -> reviews(pm, 102) == 1);
+
+        append(101, " line\n");
+        await(() -> reviews(pm, 101) == 3);
+        assertEquals("partial line", pm.getReviews(101, 0, 1).get(0).getComments());
+        pm.close();
+    }
+
+    @Test
+    public void testRestartFromDataFolder() throws Exception {
+        ProductManager pm = newManager();
+        append(101, "2,Too sweet\n");
+        await(() -> reviews(pm, 101) == 2);
+        pm.reviewProduct(101, Rating.FIVE_STAR, "only in the log");
+        Files.writeString(data.resolve("product102.txt"), "D,102,Coffee,2.99,0\n");
+        append(102, "3,Fine\n");
+        await(() -> reviews(pm, 102) == 1);
+        pm.close();
+
+        // no snapshot yet: the files are read again and only the log's own reviews replayed
+        ProductManager restarted = newManager();
+        assertEquals(3, reviews(restarted, 101));
+        assertEquals(11, restarted.getRatingStats(101).getSum());
+        assertEquals(1, reviews(restarted, 102));
+
+        append(101, "1,After the restart\n");
+        await(() -> reviews(restarted, 101) == 4);
+        restarted.close();
+    }
+
+    @Test
+    public void testRestartFromSnapshot() throws Exception {
+        ProductManager pm = newManager();
+        pm.dumpData();
+        append(101, "2,Too sweet\n");
+        await(() -> reviews(pm, 101) == 2);
+        pm.close();
+
+        // the snapshot lacks the appended review, the log has it
+        ProductManager restarted = newManager();
+        assertEquals(2, reviews(restarted, 101));
+        restarted.close();
+    }
+}
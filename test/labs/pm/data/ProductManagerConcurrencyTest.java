@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads creating the same products and reviewing them at once,
+ * one review at a time and in batches, while others list the catalog.
+ * Afterwards the stats, review lists, product ratings and discount totals
+ * must all agree with the reviews that were sent.
+ *
+ * @author Marti
+ */
+public class ProductManagerConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int PRODUCTS = 40;
+    private static final int ROUNDS = 300;
+    private static final int FIRST_ID = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentStore() throws Exception {
+        createAndReview(Map.of("store.concurrent", "true", "store.columnar", "false"));
+    }
+
+    @Test
+    public void testSynchronizedStore() throws Exception {
+        createAndReview(Map.of("store.concurrent", "false", "store.columnar", "false"));
+    }
+
+    @Test
+    public void testColumnarStore() throws Exception {
+        createAndReview(Map.of("store.concurrent", "true", "store.columnar", "true"));
+    }
+
+    @Test
+    public void testReadsDuringRestore() throws Exception {
+        readWhileRestoring(Map.of("store.concurrent", "true", "store.columnar", "false",
+                "render.cache.size", "1000000"));
+    }
+
+    @Test
+    public void testReadsDuringRestoreSynchronized() throws Exception {
+        readWhileRestoring(Map.of("store.concurrent", "false", "store.columnar", "false",
+                "render.cache.size", "1000000"));
+    }
+
+    private ProductManager newManager(Map<String, Object> settings) throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("data.folder", folder.newFolder("data").toString());
+        overrides.put("temp.folder", folder.newFolder("temp").toString());
+        overrides.put("reports.folder", folder.newFolder("reports").toString());
+        overrides.put("log.enabled", "false");
+        overrides.put("reviews.lazy", "false");
+        overrides.put("startup.async", "false");
+        overrides.put("data.watch", "false");
+        overrides.put("metrics.enabled", "false");
+        overrides.put("render.cache.size", "0");
+        overrides.putAll(settings);
+        return new ProductManager(new LayeredConfig(ResourceBundle.getBundle("labs.pm.data.config"), overrides),
+                "", id -> true);
+    }
+
+    /*
+     * A restore replaces the review lists and the stats while readers use
+     * them and a writer keeps adding reviews. No read may fail, and once
+     * everything stops the stats, lists and reports must agree again.
+     */
+    private void readWhileRestoring(Map<String, Object> settings) throws Exception {
+        ProductManager pm = newManager(settings);
+        for (int i = 0; i < PRODUCTS; i++) {
+            pm.createProduct(FIRST_ID + i, "Drink " + i, BigDecimal.valueOf(100 + i, 2), Rating.NOT_RATE);
+            pm.reviewProduct(FIRST_ID + i, Rating.FOUR_STAR, "before the snapshot");
+        }
+        pm.dumpData();
+
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            workers.add(threads.submit(() -> {
+                Random random = new Random(0);
+                while (!stop.get()) {
+                    pm.reviewProduct(FIRST_ID + random.nextInt(PRODUCTS), Rating.TWO_STAR, "after the snapshot");
+                }
+                return null;
+            }));
+            for (int t = 1; t < THREADS; t++) {
+                long seed = t;
+                workers.add(threads.submit(() -> {
+                    Random random = new Random(seed);
+                    while (!stop.get()) {
+                        int id = FIRST_ID + random.nextInt(PRODUCTS);
+                        assertTrue(pm.getRatingStats(id).getCount() >= 1);
+                        assertTrue(pm.getReviews(id, 0, Integer.MAX_VALUE).size() >= 1);
+                        pm.printProductReport(id, "en-GB", new StringWriter());
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < 100; i++) {
+                pm.restoreData();
+            }
+            stop.set(true);
+            for (Future<?> worker : workers) {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        for (int i = 0; i < PRODUCTS; i++) {
+            int id = FIRST_ID + i;
+            RatingStats stats = pm.getRatingStats(id);
+            List<Review> reviews = pm.getReviews(id, 0, Integer.MAX_VALUE);
+            assertEquals("review list of " + id, stats.getCount(), reviews.size());
+            assertEquals("rating of " + id, stats.getAverageRating(), pm.findProduct(id).getRating());
+            StringWriter cached = new StringWriter();
+            pm.printProductReport(id, "en-GB", cached);
+            assertEquals("report of " + id, reviews.size(),
+                    cached.toString().split("after the snapshot|before the snapshot", -1).length - 1);
+        }
+        pm.close();
+    }
+
+    private void createAndReview(Map<String, Object> settings) throws Exception {
+        ProductManager pm = newManager(settings);
+        Rating[] ratings = Rating.values();
+        AtomicIntegerArray counts = new AtomicIntegerArray(PRODUCTS);
+        AtomicLongArray sums = new AtomicLongArray(PRODUCTS);
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                long seed = t;
+                writers.add(threads.submit(() -> {
+                    start.await();
+                    // every thread tries to create every product, only one of each gets in
+                    for (int i = 0; i < PRODUCTS; i++) {
+                        if (i % 2 == 0) {
+                            pm.createProduct(FIRST_ID + i, "Drink " + i, BigDecimal.valueOf(100 + i, 2),
+                                    Rating.NOT_RATE);
+                        } else {
+                            pm.createProduct(FIRST_ID + i, "Food " + i, BigDecimal.valueOf(200 + i, 2),
+                                    Rating.NOT_RATE, LocalDate.of(2030, 1, 1));
+                        }
+                    }
+                    Random random = new Random(seed);
+                    for (int round = 0; round < ROUNDS; round++) {
+                        int index = random.nextInt(PRODUCTS);
+                        if (round % 2 == 0) {
+                            Rating rating = ratings[random.nextInt(ratings.length)];
+                            assertNotNull(pm.reviewProduct(FIRST_ID + index, rating, "single " + round));
+                            counts.incrementAndGet(index);
+                            sums.addAndGet(index, rating.ordinal());
+                        } else {
+                            Map<Integer, List<Review>> batch = new HashMap<>();
+                            for (int r = 0; r < 3; r++) {
+                                Rating rating = ratings[random.nextInt(ratings.length)];
+                                int other = (index + r) % PRODUCTS;
+                                batch.computeIfAbsent(FIRST_ID + other, id -> new ArrayList<>())
+                                        .add(new Review(rating, "batch " + round + ", " + r));
+                                counts.incrementAndGet(other);
+                                sums.addAndGet(other, rating.ordinal());
+                            }
+                            assertEquals(3, pm.reviewProducts(batch));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            Future<?> reader = threads.submit(() -> {
+                start.await();
+                while (!writers.stream().allMatch(Future::isDone)) {
+                    List<Product> listed = pm.findProducts(ProductManager.ALL, ProductManager.BY_RATING, PRODUCTS);
+                    assertTrue(listed.size() <= PRODUCTS);
+                }
+                return null;
+            });
+
+            start.countDown();
+            for (Future<?> writer : writers) {
+                writer.get(60, TimeUnit.SECONDS);
+            }
+            reader.get(60, TimeUnit.SECONDS);
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(PRODUCTS, pm.findProducts(ProductManager.ALL, ProductManager.BY_RATING, Integer.MAX_VALUE).size());
+        assertEquals(PRODUCTS, pm.findProducts(ProductManager.ALL, ProductManager.BY_PRICE, Integer.MAX_VALUE).size());
+        int[] rated = new int[ratings.length];
+        for (int i = 0; i < PRODUCTS; i++) {
+            int id = FIRST_ID + i;
+            RatingStats stats = pm.getRatingStats(id);
+            assertEquals("reviews of " + id, counts.get(i), stats.getCount());
+            assertEquals("rating sum of " + id, sums.get(i), stats.getSum());
+            assertEquals("review list of " + id, counts.get(i), pm.getReviews(id, 0, Integer.MAX_VALUE).size());
+            Product product = pm.findProduct(id);
+            assertEquals("rating of " + id, stats.getAverageRating(), product.getRating());
+            rated[product.getRating().ordinal()]++;
+        }
+
+        long[] totals = pm.getDiscountTotals();
+        for (Rating rating : ratings) {
+            assertEquals("products rated " + rating, rated[rating.ordinal()], totals[rating.ordinal()]);
+        }
+        pm.close();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Data surviving {@code dumpData}/{@code restoreData} and a restart with
+ * the review log, from the latest snapshot plus the log written after it.
+ *
+ * @author Marti
+ */
+public class ProductManagerPersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, Object> overrides = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        overrides.put("data.folder", folder.newFolder("data").toString());
+        overrides.put("temp.folder", folder.newFolder("temp").toString());
+        overrides.put("reports.folder", folder.newFolder("reports").toString());
+        overrides.put("store.concurrent", "true");
+        overrides.put("log.enabled", "false");
+        overrides.put("reviews.lazy", "false");
+        overrides.put("startup.async", "false");
+        overrides.put("data.watch", "false");
+        overrides.put("metrics.enabled", "false");
+        overrides.put("render.cache.size", "0");
+        // compaction would race the restarts below
+        overrides.put("log.compaction.interval", "3600");
+    }
+
+    private ProductManager newManager() {
+        return new ProductManager(new LayeredConfig(ResourceBundle.getBundle("labs.pm.data.config"),
+                new HashMap<>(overrides)), "", id -> true);
+    }
+
+    private static void assertMissing(ProductManager pm, int id) {
+        try {
+            pm.findProduct(id);
+            fail("product " + id + " still there");
+        } catch (ProductManagerException ex) {
+            // expected
+        }
+    }
+
+    private static void assertProduct(ProductManager pm, int id, String name, int reviews, long sum)
+            throws ProductManagerException {
+        Product product = pm.findProduct(id);
+        RatingStats stats = pm.getRatingStats(id);
+        assertEquals(name, product.getName());
+        assertEquals(reviews, stats.getCount());
+        assertEquals(sum, stats.getSum());
+        assertEquals(stats.getAverageRating(), product.getRating());
+        assertEquals(reviews, pm.getReviews(id, 0, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testLoadsRelativeDataFolder() throws Exception {
+        Path data = Path.of(overrides.get("data.folder").toString());
+        Files.writeString(data.resolve("product101.txt"), "D,101,Tea,1.99,0\n");
+        Files.writeString(data.resolve("product103.txt"), "F,103,Cake,3.99,0,2030-01-01\n");
+        Files.writeString(data.resolve(MessageFormat.format(
+                ResourceBundle.getBundle("labs.pm.data.config").getString("review.data.file"), 101)),
+                "4,Nice hot cup of tea\n2,Rather weak, tea\n");
+        // as in the benchmark configuration, relative to the working directory
+        overrides.put("data.folder", Path.of("").toAbsolutePath().relativize(data).toString());
+
+        // a loaded product keeps the rating of its file until reviewed
+        ProductManager pm = newManager();
+        assertEquals("Tea", pm.findProduct(101).getName());
+        assertEquals(6, pm.getRatingStats(101).getSum());
+        assertEquals(2, pm.getReviews(101, 0, 10).size());
+        assertEquals(LocalDate.of(2030, 1, 1), pm.findProduct(103).getBestBefore());
+        assertEquals(0, pm.getRatingStats(103).getCount());
+        pm.close();
+    }
+
+    @Test
+    public void testDumpRestore() throws Exception {
+        ProductManager pm = newManager();
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.createProduct(102, "Cake", new BigDecimal("3.99"), Rating.NOT_RATE, LocalDate.of(2030, 1, 1));
+        pm.reviewProduct(101, Rating.FOUR_STAR, "Nice hot cup of tea");
+        pm.reviewProduct(101, Rating.TWO_STAR, "Rather weak, tea");
+        pm.reviewProducts(Map.of(102, List.of(new Review(Rating.FIVE_STAR, "Très bon"),
+                new Review(Rating.FOUR_STAR, "Good"))));
+        pm.dumpData();
+
+        pm.reviewProduct(101, Rating.ONE_STAR, "after the dump");
+        pm.createProduct(103, "Coffee", new BigDecimal("2.99"), Rating.NOT_RATE);
+        pm.restoreData();
+
+        assertProduct(pm, 101, "Tea", 2, 6);
+        assertProduct(pm, 102, "Cake", 2, 9);
+        assertMissing(pm, 103);
+        assertEquals(LocalDate.of(2030, 1, 1), pm.findProduct(102).getBestBefore());
+        assertEquals("Rather weak, tea", pm.getReviews(101, 1, 1).get(0).getComments());
+        assertEquals(2, pm.findProducts(ProductManager.ALL, ProductManager.BY_PRICE, Integer.MAX_VALUE).size());
+        pm.close();
+
+        // a new instance starts from the empty data folder until told to restore
+        ProductManager restarted = newManager();
+        assertMissing(restarted, 101);
+        restarted.restoreData();
+        assertProduct(restarted, 101, "Tea", 2, 6);
+        assertProduct(restarted, 102, "Cake", 2, 9);
+        restarted.close();
+    }
+
+    @Test
+    public void testRestoreWithoutSnapshot() throws Exception {
+        ProductManager pm = newManager();
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.reviewProduct(101, Rating.FOUR_STAR, "kept");
+        pm.restoreData();
+
+        assertProduct(pm, 101, "Tea", 1, 4);
+        pm.close();
+    }
+
+    @Test
+    public void testLogRecovery() throws Exception {
+        recoverFromLog(false);
+    }
+
+    @Test
+    public void testLogRecoveryLazyReviews() throws Exception {
+        recoverFromLog(true);
+    }
+
+    private void recoverFromLog(boolean lazy) throws Exception {
+        overrides.put("log.enabled", "true");
+        overrides.put("reviews.lazy", String.valueOf(lazy));
+
+        ProductManager pm = newManager();
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.createProduct(102, "Cake", new BigDecimal("3.99"), Rating.NOT_RATE, LocalDate.of(2030, 1, 1));
+        pm.reviewProduct(101, Rating.FOUR_STAR, "before the snapshot");
+        pm.dumpData();
+        pm.reviewProduct(101, Rating.TWO_STAR, "after the snapshot, with a comma");
+        pm.reviewProducts(Map.of(102, List.of(new Review(Rating.FIVE_STAR, "Très bon"),
+                new Review(Rating.THREE_STAR, "ok"))));
+        pm.createProduct(103, "Coffee", new BigDecimal("2.99"), Rating.NOT_RATE);
+        pm.reviewProduct(103, Rating.ONE_STAR, "logged only");
+        pm.close();
+
+        ProductManager recovered = newManager();
+        assertProduct(recovered, 101, "Tea", 2, 6);
+        assertProduct(recovered, 102, "Cake", 2, 8);
+        assertProduct(recovered, 103, "Coffee", 1, 1);
+        assertEquals("after the snapshot, with a comma", recovered.getReviews(101, 1, 1).get(0).getComments());
+        assertEquals(LocalDate.of(2030, 1, 1), recovered.findProduct(102).getBestBefore());
+
+        // changes after recovery are logged after the replayed ones
+        recovered.reviewProduct(103, Rating.FIVE_STAR, "after recovery");
+        recovered.close();
+
+        ProductManager again = newManager();
+        assertProduct(again, 103, "Coffee", 2, 6);
+        assertNull(again.reviewProduct(999, Rating.ONE_STAR, "unknown product"));
+        again.close();
+    }
+
+    @Test
+    public void testLazyReviewsMetrics() throws Exception {
+        overrides.put("reviews.lazy", "true");
+        overrides.put("reviews.cache.size", "3");
+        overrides.put("metrics.enabled", "true");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("labs.pm.data:type=ProductManager,name=ReviewCache");
+
+        ProductManager pm = newManager();
+        try {
+            pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+            pm.createProduct(102, "Coffee", new BigDecimal("2.99"), Rating.NOT_RATE);
+            pm.reviewProduct(101, Rating.FOUR_STAR, "Nice hot cup of tea");
+            pm.reviewProduct(101, Rating.TWO_STAR, "Rather weak, tea");
+            pm.reviewProduct(102, Rating.FIVE_STAR, "Strong");
+            pm.reviewProduct(102, Rating.THREE_STAR, "Bitter");
+            pm.dumpData();
+            pm.restoreData();
+            ReviewCache cache = pm.getReviewCache();
+            cache.reset();
+            assertEquals(0L, server.getAttribute(name, "Loads"));
+
+            assertEquals(2, pm.getReviews(101, 0, 10).size());
+            assertEquals(2, cache.getCachedReviews());
+            // four reviews do not fit in three, the first list drops its reviews
+            assertEquals(2, pm.getReviews(102, 0, 10).size());
+            assertEquals(2L, server.getAttribute(name, "Loads"));
+            assertEquals(1L, server.getAttribute(name, "Evictions"));
+            assertEquals(2L, server.getAttribute(name, "CachedReviews"));
+            assertEquals(3L, server.getAttribute(name, "Capacity"));
+
+            pm.reviewProduct(101, Rating.ONE_STAR, "added");
+            assertEquals(1L, server.getAttribute(name, "AddedReviews"));
+        } finally {
+            pm.close();
+            server.unregisterMBean(name);
+            server.unregisterMBean(new ObjectName("labs.pm.data:type=ProductManager,name=Metrics"));
+        }
+    }
+
+    @Test
+    public void testRestoreWhileReviewing() throws Exception {
+        overrides.put("log.enabled", "true");
+
+        ProductManager pm = newManager();
+        for (int id = 101; id <= 104; id++) {
+            pm.createProduct(id, "Tea " + id, new BigDecimal("1.99"), Rating.NOT_RATE);
+        }
+        pm.dumpData();
+
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] reviewers = new Future<?>[4];
+            for (int t = 0; t < reviewers.length; t++) {
+                int id = 101 + t;
+                reviewers[t] = threads.submit(() -> {
+                    List<Review> batch = List.of(new Review(Rating.THREE_STAR, "in flight"),
+                            new Review(Rating.THREE_STAR, "in flight"));
+                    while (!stop.get()) {
+                        pm.reviewProduct(id, Rating.THREE_STAR, "in flight");
+                        pm.reviewProducts(Map.of(id, batch));
+                    }
+                });
+            }
+            for (int i = 0; i < 200; i++) {
+                pm.restoreData();
+            }
+            stop.set(true);
+            for (Future<?> reviewer : reviewers) {
+                reviewer.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        int[] counts = new int[4];
+        for (int t = 0; t < counts.length; t++) {
+            counts[t] = pm.getRatingStats(101 + t).getCount();
+        }
+        pm.close();
+
+        // every review the restores kept is in the log and nothing else is
+        ProductManager recovered = newManager();
+        for (int t = 0; t < counts.length; t++) {
+            assertProduct(recovered, 101 + t, "Tea " + (101 + t), counts[t], 3L * counts[t]);
+        }
+        recovered.close();
+    }
+
+    @Test
+    public void testCloseStopsCompaction() throws Exception {
+        overrides.put("log.enabled", "true");
+        overrides.put("log.segment.size", "64");
+        overrides.put("log.compaction.interval", "1");
+
+        ProductManager pm = newManager();
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        for (int i = 0; i < 10; i++) {
+            pm.reviewProduct(101, Rating.FOUR_STAR, "review " + i);
+        }
+        pm.close();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("review-log-compactor")) {
+                thread.join(5000);
+                assertFalse("compactor still running after close", thread.isAlive());
+            }
+        }
+        ProductManager recovered = newManager();
+        assertProduct(recovered, 101, "Tea", 10, 40);
+        recovered.close();
+    }
+
+    @Test
+    public void testLogRecoveryWithoutSnapshot() throws Exception {
+        overrides.put("log.enabled", "true");
+
+        ProductManager pm = newManager();
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.reviewProduct(101, Rating.THREE_STAR, "never dumped");
+        pm.close();
+
+        ProductManager recovered = newManager();
+        assertProduct(recovered, 101, "Tea", 1, 3);
+        recovered.close();
+    }
+}
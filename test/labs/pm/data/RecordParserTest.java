@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.LocalDate;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Product and review lines as found in the data folder, and the ways
+ * they can be broken.
+ *
+ * @author Marti
+ */
+public class RecordParserTest {
+
+    private static void assertRejected(String text, int offset) {
+        try {
+            RecordParser.parseProduct(text);
+            fail("parsed " + text);
+        } catch (ParseException ex) {
+            assertEquals("error offset in " + text, offset, ex.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void testDrink() throws ParseException {
+        Product product = RecordParser.parseProduct("D,101,Tea,1.99,4");
+        assertTrue(product instanceof Drink);
+        assertEquals(101, product.getId());
+        assertEquals("Tea", product.getName());
+        assertEquals(new BigDecimal("1.99"), product.getPrice());
+        assertEquals(Rating.FOUR_STAR, product.getRating());
+    }
+
+    @Test
+    public void testDrinkWithUnusedColumn() throws ParseException {
+        Product product = RecordParser.parseProduct("D,101,Tea,1.99,0,0");
+        assertTrue(product instanceof Drink);
+        assertEquals(Rating.NOT_RATE, product.getRating());
+    }
+
+    @Test
+    public void testFood() throws ParseException {
+        Product product = RecordParser.parseProduct("F,103,Cake,3.99,0,2019-09-19");
+        assertTrue(product instanceof Food);
+        assertEquals("Cake", product.getName());
+        assertEquals(LocalDate.of(2019, 9, 19), product.getBestBefore());
+    }
+
+    @Test
+    public void testSharedNames() throws ParseException {
+        StringDictionary names = new StringDictionary(10);
+        Product first = RecordParser.parseProduct("D,101,Tea,1.99,0", names);
+        Product second = RecordParser.parseProduct(new StringBuilder("D,102,Tea,2.99,0"), names);
+        assertSame(first.getName(), second.getName());
+    }
+
+    @Test
+    public void testTrailingData() {
+        assertRejected("D,101,Tea,1.99,0x", 16);
+        assertRejected("D,101,Tea,1.99,0,0x", 18);
+        assertRejected("D,101,Tea,1.99,0,0,0", 18);
+        assertRejected("F,103,Cake,3.99,0,2019-09-19,", 28);
+    }
+
+    @Test
+    public void testMissingFields() {
+        assertRejected("", 0);
+        assertRejected("D,101,Tea", 9);
+        assertRejected("D,101,,1.99,0", 6);
+        assertRejected("D,101,Tea,1.99,0,", 17);
+        assertRejected("F,103,Cake,3.99,0", 17);
+    }
+
+    @Test
+    public void testBadValues() {
+        assertRejected("X,101,Tea,1.99,0", 0);
+        assertRejected("D,x101,Tea,1.99,0", 2);
+        assertRejected("D,-,Tea,1.99,0", 2);
+        assertRejected("D,12345678901,Tea,1.99,0", 2);
+        assertRejected("D,101,Tea,abc,0", 10);
+        assertRejected("D,101,Tea,1.99,0,x", 17);
+    }
+
+    @Test
+    public void testBadDates() {
+        assertRejected("F,103,Cake,3.99,0,2019-02-30", 18);
+        assertRejected("F,103,Cake,3.99,0,2019-9-19", 23);
+        assertRejected("F,103,Cake,3.99,0,19-09-19", 18);
+        assertRejected("F,103,Cake,3.99,0,2019/09/19", 22);
+    }
+
+    @Test
+    public void testReview() throws ParseException {
+        Review review = RecordParser.parseReview("4,Nice hot cup of tea");
+        assertEquals(Rating.FOUR_STAR, review.getRating());
+        assertEquals("Nice hot cup of tea", review.getComments());
+    }
+
+    @Test
+    public void testReviewWithCommas() throws ParseException {
+        assertEquals("Fine, tea, with commas,", RecordParser.parseReview("5,Fine, tea, with commas,").getComments());
+        assertEquals("", RecordParser.parseReview("1,").getComments());
+    }
+
+    @Test
+    public void testBadReviews() {
+        for (String text : new String[]{"", "4", "x,Bad", "4;Bad"}) {
+            try {
+                RecordParser.parseReview(text);
+                fail("parsed " + text);
+            } catch (ParseException ex) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rendered reports and listings served from the cache until the data they
+ * were rendered from changes, and never after.
+ *
+ * @author Marti
+ */
+public class RenderCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProductManager pm;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("data.folder", folder.newFolder("data").toString());
+        overrides.put("temp.folder", folder.newFolder("temp").toString());
+        overrides.put("reports.folder", folder.newFolder("reports").toString());
+        overrides.put("startup.async", "false");
+        overrides.put("data.watch", "false");
+        overrides.put("metrics.enabled", "false");
+        overrides.put("render.cache.size", "100000");
+        pm = new ProductManager(new LayeredConfig(ResourceBundle.getBundle("labs.pm.data.config"), overrides),
+                "", id -> true);
+        pm.createProduct(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATE);
+        pm.createProduct(102, "Coffee", new BigDecimal("2.99"), Rating.NOT_RATE);
+    }
+
+    @After
+    public void tearDown() {
+        pm.close();
+    }
+
+    private String report(int id) throws Exception {
+        StringWriter out = new StringWriter();
+        pm.printProductReport(id, "en-GB", out);
+        return out.toString();
+    }
+
+    private String listing() throws Exception {
+        StringWriter out = new StringWriter();
+        pm.printProducts(ProductManager.ALL, ProductManager.BY_PRICE, 10, "en-GB", out);
+        return out.toString();
+    }
+
+    @Test
+    public void testReportInvalidatedByReview() throws Exception {
+        RenderCache cache = pm.getRenderCache();
+        String first = report(101);
+        assertEquals(1, cache.getMisses());
+        assertEquals(first, report(101));
+        assertEquals(1, cache.getHits());
+
+        pm.reviewProduct(101, Rating.FOUR_STAR, "Nice hot cup of tea");
+        String reviewed = report(101);
+        assertTrue(reviewed.contains("Nice hot cup of tea"));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(2, cache.getMisses());
+        assertEquals(reviewed, report(101));
+        assertEquals(2, cache.getHits());
+
+        // a review of another product leaves this report cached
+        pm.reviewProduct(102, Rating.TWO_STAR, "Bitter");
+        assertEquals(reviewed, report(101));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testListingInvalidatedByCatalogChange() throws Exception {
+        RenderCache cache = pm.getRenderCache();
+        String first = listing();
+        assertFalse(first.contains("Water"));
+        assertEquals(first, listing());
+        assertEquals(1, cache.getHits());
+
+        pm.createProduct(103, "Water", new BigDecimal("0.99"), Rating.NOT_RATE);
+        String created = listing();
+        assertTrue(created.startsWith("Water"));
+        assertEquals(1, cache.getInvalidations());
+
+        pm.reviewProduct(102, Rating.FIVE_STAR, "Strong");
+        assertFalse(created.equals(listing()));
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    @Test
+    public void testVersionsAndCapacity() {
+        RenderCache cache = new RenderCache(80);
+        cache.put("a", 2, "0123456789");
+        assertEquals("0123456789", cache.get("a", 2));
+        // an older rendering never replaces a newer one
+        cache.put("a", 1, "old");
+        assertEquals("0123456789", cache.get("a", 2));
+        // longer than an eighth of the capacity
+        cache.put("b", 1, "01234567890");
+        assertNull(cache.get("b", 1));
+
+        for (int i = 0; i < 8; i++) {
+            cache.put(i, 1, "0123456789");
+        }
+        assertEquals(80, cache.getSize());
+        assertEquals(8, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("a", 2));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records written by the group commit writer and read back by replay.
+ *
+ * @author Marti
+ */
+public class ReviewLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Records implements ReviewLog.Handler {
+
+        private final List<Product> products = new ArrayList<>();
+        private final List<Review> reviews = new ArrayList<>();
+        private final List<Integer> reviewed = new ArrayList<>();
+
+        @Override
+        public void product(Product product) {
+            products.add(product);
+        }
+
+        @Override
+        public void review(int id, Rating rating, String comments) {
+            reviewed.add(id);
+            reviews.add(new Review(rating, comments));
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        Path path = folder.getRoot().toPath();
+        ReviewLog log = new ReviewLog(path, 1024 * 1024);
+        log.start(0);
+        log.appendProduct(new Food(103, "Cake", new BigDecimal("3.99"), Rating.NOT_RATE, LocalDate.of(2030, 1, 1)));
+        log.appendReview(103, Rating.FIVE_STAR, "Très bon, with a comma").join();
+        assertEquals(2, log.lastSequence());
+        log.close();
+
+        Records records = new Records();
+        assertEquals(2, new ReviewLog(path, 1024 * 1024).replay(0, records));
+        assertEquals(1, records.products.size());
+        Product product = records.products.get(0);
+        assertTrue(product instanceof Food);
+        assertEquals("Cake", product.getName());
+        assertEquals(new BigDecimal("3.99"), product.getPrice());
+        assertEquals(LocalDate.of(2030, 1, 1), product.getBestBefore());
+        assertEquals(List.of(103), records.reviewed);
+        assertEquals("Très bon, with a comma", records.reviews.get(0).getComments());
+
+        Records after = new Records();
+        new ReviewLog(path, 1024 * 1024).replay(1, after);
+        assertEquals(0, after.products.size());
+        assertEquals(1, after.reviews.size());
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        Path path = folder.getRoot().toPath();
+        ReviewLog log = new ReviewLog(path, 1024 * 1024);
+        log.start(0);
+        // nobody waits for these, as when their writers were interrupted by a restore
+        for (int i = 0; i < 5000; i++) {
+            log.appendReview(101, Rating.FOUR_STAR, "queued " + i);
+        }
+        log.flush().join();
+
+        Records records = new Records();
+        assertEquals(5000, log.replay(0, records));
+        assertEquals(5000, records.reviews.size());
+        log.close();
+    }
+
+    @Test
+    public void testSegmentsAndCompaction() throws IOException {
+        Path path = folder.getRoot().toPath();
+        ReviewLog log = new ReviewLog(path, 256);
+        log.start(0);
+        for (int i = 0; i < 100; i++) {
+            log.appendReview(101, Rating.ONE_STAR, "review " + i).join();
+        }
+        assertTrue(log.hasSealedSegments());
+        log.compact(60);
+
+        Records records = new Records();
+        long last = log.replay(60, records);
+        assertEquals(100, last);
+        assertEquals(40, records.reviews.size());
+        assertEquals("review 60", records.reviews.get(0).getComments());
+        log.close();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Scatter-gather over shards in this process and behind
+ * {@link ShardServer}s, compared with a single manager holding the same
+ * data.
+ *
+ * @author Marti
+ */
+public class ShardedProductManagerTest {
+
+    private static final int PRODUCTS = 60;
+    private static final int FIRST_ID = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ResourceBundle config;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("data.folder", folder.newFolder("data").toString());
+        overrides.put("temp.folder", folder.newFolder("temp").toString());
+        overrides.put("reports.folder", folder.newFolder("reports").toString());
+        overrides.put("store.concurrent", "true");
+        overrides.put("log.enabled", "true");
+        overrides.put("log.compaction.interval", "3600");
+        overrides.put("reviews.lazy", "false");
+        overrides.put("startup.async", "false");
+        overrides.put("data.watch", "false");
+        overrides.put("metrics.enabled", "false");
+        overrides.put("render.cache.size", "0");
+        config = new LayeredConfig(ResourceBundle.getBundle("labs.pm.data.config"), overrides);
+    }
+
+    /*
+     * Same products and reviews through either API, prices repeat so that
+     * the listings need their id tie break.
+     */
+    private static Map<Integer, List<Review>> fill(ProductManager single, ShardedProductManager sharded) {
+        Map<Integer, List<Review>> batch = new HashMap<>();
+        for (int i = 0; i < PRODUCTS; i++) {
+            int id = FIRST_ID + i;
+            BigDecimal price = BigDecimal.valueOf(100 + i % 7 * 50, 2);
+            if (i % 3 == 0) {
+                LocalDate bestBefore = LocalDate.of(2030, 1, 1).plusDays(i);
+                single.createProduct(id, "Food " + i, price, Rating.NOT_RATE, bestBefore);
+                sharded.createProduct(id, "Food " + i, price, Rating.NOT_RATE, bestBefore);
+            } else {
+                single.createProduct(id, "Drink " + i, price, Rating.NOT_RATE);
+                sharded.createProduct(id, "Drink " + i, price, Rating.NOT_RATE);
+            }
+            Rating rating = Rating.values()[i % Rating.values().length];
+            single.reviewProduct(id, rating, "single " + i);
+            sharded.reviewProduct(id, rating, "single " + i);
+            batch.put(id, List.of(new Review(Rating.values()[(i * 7) % 6], "batch " + i),
+                    new Review(Rating.FIVE_STAR, "batch, again")));
+        }
+        batch.put(9999, List.of(new Review(Rating.ONE_STAR, "unknown product")));
+        assertEquals(2 * PRODUCTS, single.reviewProducts(batch));
+        assertEquals(2 * PRODUCTS, sharded.reviewProducts(batch));
+        return batch;
+    }
+
+    private static List<Integer> ids(List<Product> products) {
+        return products.stream().map(Product::getId).collect(Collectors.toList());
+    }
+
+    private static void assertSameListings(ProductManager single, ShardedProductManager sharded) throws Exception {
+        Predicate<Product> cheap = product -> product.getPrice().compareTo(new BigDecimal("2.50")) < 0;
+        Comparator<Product> byName = Comparator.comparing(Product::getName);
+        for (int limit : new int[]{0, 1, 7, PRODUCTS, Integer.MAX_VALUE}) {
+            assertEquals(ids(single.findProducts(ProductManager.ALL, ProductManager.BY_RATING, limit)),
+                    ids(sharded.findProducts(ProductManager.ALL, ProductManager.BY_RATING, limit)));
+            assertEquals(ids(single.findProducts(ProductManager.ALL, ProductManager.BY_PRICE, limit)),
+                    ids(sharded.findProducts(ProductManager.ALL, ProductManager.BY_PRICE, limit)));
+            assertEquals(ids(single.findProducts(cheap, ProductManager.BY_PRICE, limit)),
+                    ids(sharded.findProducts(cheap, ProductManager.BY_PRICE, limit)));
+            assertEquals(ids(single.findProducts(ProductManager.ALL, byName, limit)),
+                    ids(sharded.findProducts(ProductManager.ALL, byName, limit)));
+        }
+        assertEquals(single.getDiscounts("en-GB"), sharded.getDiscounts("en-GB"));
+        for (int i = 0; i < PRODUCTS; i++) {
+            int id = FIRST_ID + i;
+            Product expected = single.findProduct(id);
+            Product actual = sharded.findProduct(id);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getRating(), actual.getRating());
+            List<Review> reviews = sharded.getReviews(id, 0, 10);
+            assertEquals(single.getRatingStats(id).getCount(), reviews.size());
+            assertEquals(single.getReviews(id, 0, 10).stream().map(Review::getComments).collect(Collectors.toList()),
+                    reviews.stream().map(Review::getComments).collect(Collectors.toList()));
+        }
+        try {
+            sharded.findProduct(9999);
+            fail("found a product that was never created");
+        } catch (ProductManagerException ex) {
+            // expected
+        }
+    }
+
+    private ProductManager single() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("temp.folder", folder.newFolder("single").toString());
+        return new ProductManager(new LayeredConfig(config, overrides), "", id -> true);
+    }
+
+    @Test
+    public void testLocalShards() throws Exception {
+        ProductManager single = single();
+        ShardedProductManager sharded = new ShardedProductManager(config, 3);
+        fill(single, sharded);
+        assertSameListings(single, sharded);
+
+        // restored from each shard's snapshot and review log
+        sharded.dumpData();
+        sharded.reviewProduct(FIRST_ID, Rating.ONE_STAR, "after the dump");
+        single.reviewProduct(FIRST_ID, Rating.ONE_STAR, "after the dump");
+        sharded.restoreData();
+        assertSameListings(single, sharded);
+
+        sharded.close();
+        single.close();
+    }
+
+    @Test
+    public void testRemoteShards() throws Exception {
+        Set<Thread> before = new HashSet<>(Thread.getAllStackTraces().keySet());
+        ProductManager single = single();
+        ShardServer first = new ShardServer(new LocalShard(ShardedProductManager.newShard(config, 0, 2)), 0);
+        ShardServer second = new ShardServer(new LocalShard(ShardedProductManager.newShard(config, 1, 2)), 0);
+        ShardedProductManager sharded = ShardedProductManager.connect(List.of(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), first.getPort()),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), second.getPort())));
+        fill(single, sharded);
+        assertSameListings(single, sharded);
+
+        sharded.close();
+        first.close();
+        second.close();
+        single.close();
+
+        // closing a server closes the manager it served, review log writer included
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!before.contains(thread) && thread.getName().equals("review-log-writer")) {
+                thread.join(5000);
+                assertFalse("review log of a closed shard server still open", thread.isAlive());
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2021 Marti
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package labs.pm.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writing a snapshot and reading it back, eagerly and through a
+ * {@link ReviewCache}.
+ *
+ * @author Marti
+ */
+public class SnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<Product, List<Review>> sample() {
+        Map<Product, List<Review>> data = new HashMap<>();
+        data.put(new Drink(101, "Tea", new BigDecimal("1.99"), Rating.FOUR_STAR), new ArrayList<>(List.of(
+                new Review(Rating.FOUR_STAR, "Nice hot cup of tea"),
+                new Review(Rating.FIVE_STAR, "Fine, tea, with commas"),
+                new Review(Rating.FOUR_STAR, "Nice hot cup of tea"))));
+        data.put(new Food(102, "Crème brûlée", new BigDecimal("3.5"), Rating.FIVE_STAR,
+                LocalDate.of(2021, 5, 19)), new ArrayList<>(List.of(
+                new Review(Rating.FIVE_STAR, "Très bon ☕ ★"),
+                new Review(Rating.ONE_STAR, ""))));
+        data.put(new Drink(103, "Water", new BigDecimal("0.00"), Rating.NOT_RATE), new ArrayList<>());
+        return data;
+    }
+
+    private static void assertSameData(Map<Product, List<Review>> expected, Map<Product, List<Review>> actual) {
+        assertEquals(expected.size(), actual.size());
+        Map<Integer, Product> byId = new HashMap<>();
+        actual.keySet().forEach(product -> byId.put(product.getId(), product));
+        for (Map.Entry<Product, List<Review>> entry : expected.entrySet()) {
+            Product want = entry.getKey();
+            Product got = byId.get(want.getId());
+            assertEquals(want.getClass(), got.getClass());
+            assertEquals(want.getName(), got.getName());
+            assertEquals(want.getPrice(), got.getPrice());
+            assertEquals(want.getRating(), got.getRating());
+            if (want instanceof Food) {
+                assertEquals(want.getBestBefore(), got.getBestBefore());
+            }
+            assertSameReviews(entry.getValue(), actual.get(got));
+        }
+    }
+
+    private static void assertSameReviews(List<Review> expected, List<Review> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getRating(), actual.get(i).getRating());
+            assertEquals(expected.get(i).getComments(), actual.get(i).getComments());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("snapshot.tmp");
+        Map<Product, List<Review>> data = sample();
+        SnapshotFile.write(file, data, 42);
+
+        SnapshotFile.Contents contents = SnapshotFile.read(file);
+        assertEquals(42, contents.getLogSequence());
+        assertSameData(data, contents.getData());
+    }
+
+    @Test
+    public void testEmptySnapshot() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("empty.tmp");
+        SnapshotFile.write(file, new HashMap<>(), 0);
+
+        SnapshotFile.Contents contents = SnapshotFile.read(file);
+        assertEquals(0, contents.getLogSequence());
+        assertTrue(contents.getData().isEmpty());
+    }
+
+    @Test
+    public void testLazyReadLoadsOnUse() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("snapshot.tmp");
+        Map<Product, List<Review>> data = sample();
+        SnapshotFile.write(file, data, 7);
+
+        ReviewCache cache = new ReviewCache(product -> {
+            throw new AssertionError("reviews are read from the snapshot");
+        }, 1000);
+        SnapshotFile.Contents contents = SnapshotFile.read(file, cache, id -> true);
+        assertEquals(7, contents.getLogSequence());
+        assertEquals(0, cache.getLoads());
+
+        assertSameData(data, contents.getData());
+        assertEquals(data.size(), cache.getLoads());
+    }
+
+    @Test
+    public void testWriteReadsLazyListsOnce() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("snapshot.tmp");
+        Map<Product, List<Review>> data = sample();
+        ReviewCache cache = new ReviewCache(product -> data.get(product), 1000);
+        AtomicInteger reads = new AtomicInteger();
+        Map<Product, List<Review>> lazy = new HashMap<>();
+        data.forEach((product, reviews) -> {
+            List<Review> list = cache.lazyList(() -> {
+                reads.incrementAndGet();
+                return new ArrayList<>(reviews);
+            });
+            // a captured view: reads its source on every use
+            lazy.put(product, ReviewCache.copyOf(list, ReviewCache.mark(list)));
+        });
+
+        SnapshotFile.write(file, lazy, 5);
+        assertEquals(data.size(), reads.get());
+        assertSameData(data, SnapshotFile.read(file).getData());
+    }
+
+    @Test
+    public void testOwnedProductsOnly() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("snapshot.tmp");
+        Map<Product, List<Review>> data = sample();
+        SnapshotFile.write(file, data, 3);
+
+        SnapshotFile.Contents contents = SnapshotFile.read(file, null, id -> id != 101);
+        data.keySet().removeIf(product -> product.getId() == 101);
+        // the reviews of the skipped product must not shift the others
+        assertSameData(data, contents.getData());
+    }
+
+    @Test
+    public void testNotASnapshot() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("reviews101.tmp");
+        Files.writeString(file, "4,Nice hot cup of tea\n");
+        try {
+            SnapshotFile.read(file);
+            fail("read a review file as a snapshot");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNewerVersion() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("snapshot.tmp");
+        SnapshotFile.write(file, sample(), 1);
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putShort(Integer.BYTES, (short) (SnapshotFile.VERSION + 1));
+        Files.write(file, bytes);
+        try {
+            SnapshotFile.read(file);
+            fail("read a snapshot of an unknown version");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}